@@ -0,0 +1,64 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Approximate counts of the sketches, on a synthetic dataset, to compare with the exact
+ * {@link InMemoryEngineBenchmark} and {@link MongoDAOBenchmark} counts.
+ * Runs offline, without MongoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldSketchesBenchmark {
+	private static final List<String> FIELDS = Collections.singletonList("strada");
+
+	@Param({"100000"})
+	private int rows;
+
+	private FieldSketches sketches;
+
+	@Setup
+	public void setup() {
+		sketches = new FieldSketches(null, FIELDS, ConfigurationConstants.DEFAULT_SKETCH_PRECISION,
+				ConfigurationConstants.DEFAULT_SKETCH_CAPACITY, 0);
+		for (Document d : SyntheticDataset.generate(rows)) {
+			sketches.add(d);
+		}
+	}
+
+	@Benchmark
+	public JsonArray getCount() {
+		return sketches.getCount("strada", 20);
+	}
+
+	@Benchmark
+	public JsonObject getFacets() {
+		return sketches.getFacets(Collections.singletonMap("anno", "2014"), FIELDS, 20);
+	}
+
+	@Benchmark
+	public JsonObject getDistinctCount() {
+		return sketches.getDistinctCount("strada", null);
+	}
+}
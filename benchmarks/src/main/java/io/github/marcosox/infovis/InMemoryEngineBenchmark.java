@@ -0,0 +1,96 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query paths of the in-memory engine, on a synthetic dataset.
+ * Runs offline, without MongoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryEngineBenchmark {
+	private static final List<String> FACETS = Arrays.asList("strada", "ora", "numero_gruppo", "mese");
+
+	@Param({"100000"})
+	private int rows;
+
+	private AccidentsIndex index;
+
+	@Setup
+	public void setup() {
+		index = SyntheticDataset.index(rows);
+	}
+
+	@Benchmark
+	public JsonArray getCount() {
+		return index.getCount("strada", 500);
+	}
+
+	/**
+	 * The counts of a dashboard with one query
+	 */
+	@Benchmark
+	public JsonObject getFacets() {
+		return index.getFacets(Collections.singletonMap("anno", "2014"), FACETS, 20);
+	}
+
+	/**
+	 * The counts of a dashboard with one query per field, without the shared filter
+	 */
+	@Benchmark
+	public void getCountPerField(Blackhole blackhole) {
+		for (String field : FACETS) {
+			blackhole.consume(index.getCount(field, 20));
+		}
+	}
+
+	@Benchmark
+	public JsonArray getAggregateCount() {
+		return index.getAggregateCount("ora", 20, "anno", "2014", true);
+	}
+
+	@Benchmark
+	public void getAllAccidents(Blackhole blackhole) {
+		index.forEachAccident("2014", "3", null, item -> {
+			blackhole.consume(item);
+			return true;
+		});
+	}
+
+	@Benchmark
+	public JsonArray getDistrictsAccidents() {
+		return index.getDistrictsAccidents("2014", "05", null, "18");
+	}
+
+	@Benchmark
+	public JsonArray getAccidentsByDay() {
+		return index.getAccidentsByDay();
+	}
+
+	@Benchmark
+	public JsonObject getTile() {
+		return index.getTile(12, 2189, 1522, 3, null, null, null);
+	}
+}
@@ -0,0 +1,61 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup paths of the in-memory engine: building it from the documents, and reading it from a snapshot file.
+ * Runs offline, without MongoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexSnapshotBenchmark {
+	private static final JsonObject STAMP = new JsonObject().put("count", 0).put("maxId", "bench");
+
+	@Param({"100000"})
+	private int rows;
+
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Files.createTempFile("accidents", ".snapshot");
+		new IndexSnapshot(SyntheticDataset.index(rows), new JsonArray()).write(file, STAMP);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public AccidentsIndex build() {
+		return SyntheticDataset.index(rows);
+	}
+
+	@Benchmark
+	public AccidentsIndex readSnapshot() throws IOException {
+		return IndexSnapshot.read(file, STAMP).getIndex();
+	}
+}
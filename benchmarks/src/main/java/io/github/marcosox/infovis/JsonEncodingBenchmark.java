@@ -0,0 +1,62 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a geocoded accidents response, for typical result sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonEncodingBenchmark {
+
+	@Param({"100", "10000", "100000"})
+	private int size;
+
+	private JsonArray accidents;
+
+	@Setup
+	public void setup() {
+		accidents = new JsonArray();
+		for (Document d : SyntheticDataset.generate(size)) {
+			accidents.add(new JsonObject()
+					.put("lat", d.getString("lat"))
+					.put("lon", d.getString("lon"))
+					.put("protocollo", d.getString("incidente")));
+		}
+	}
+
+	@Benchmark
+	public String encodePrettily() {
+		return accidents.encodePrettily();
+	}
+
+	@Benchmark
+	public String encode() {
+		return accidents.encode();
+	}
+
+	@Benchmark
+	public Buffer toBuffer() {
+		return accidents.toBuffer();
+	}
+}
@@ -0,0 +1,162 @@
+package io.github.marcosox.infovis;
+
+import com.mongodb.Block;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query paths of {@link MongoDAO}, on a synthetic dataset stored in a local mongod.
+ * The mongod address is read from the mongo.host and mongo.port system properties (default localhost:27017),
+ * and the dataset is written to the infovis_bench database the first time a dataset size is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MongoDAOBenchmark {
+	private static final String DB_NAME = "infovis_bench";
+	private static final int INSERT_BATCH_SIZE = 10000;
+	private static final List<String> FACETS = Arrays.asList("strada", "ora", "numero_gruppo", "mese");
+
+	@Param({"100000"})
+	private int rows;
+
+	private MongoClient client;
+	private MongoCollection<Document> collection;
+	private MongoDAO dao;
+
+	@Setup
+	public void setup() {
+		String host = System.getProperty("mongo.host", ConfigurationConstants.DEFAULT_DB_HOST);
+		int port = Integer.getInteger("mongo.port", ConfigurationConstants.DEFAULT_DB_PORT);
+		String collectionName = "accidents_" + rows;
+		client = new MongoClient(host, port);
+		collection = client.getDatabase(DB_NAME).getCollection(collectionName);
+		if (collection.count() != rows) {
+			collection.drop();
+			List<Document> documents = SyntheticDataset.generate(rows);
+			for (int i = 0; i < documents.size(); i += INSERT_BATCH_SIZE) {
+				collection.insertMany(documents.subList(i, Math.min(documents.size(), i + INSERT_BATCH_SIZE)));
+			}
+		}
+		dao = new MongoDAO(host, port, DB_NAME, collectionName, null, null, null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dao.disconnect();
+		client.close();
+	}
+
+	@Benchmark
+	public JsonArray getCount() {
+		return dao.getCount("strada", 500);
+	}
+
+	/**
+	 * The counts of a dashboard with one query
+	 */
+	@Benchmark
+	public JsonObject getFacets() {
+		return dao.getFacets(Collections.singletonMap("anno", "2014"), FACETS, 20);
+	}
+
+	/**
+	 * The counts of a dashboard with one query per field, without the shared filter
+	 */
+	@Benchmark
+	public void getCountPerField(Blackhole blackhole) {
+		for (String field : FACETS) {
+			blackhole.consume(dao.getCount(field, 20));
+		}
+	}
+
+	@Benchmark
+	public JsonArray getAggregateCount() {
+		return dao.getAggregateCount("ora", 20, "anno", "2014", true);
+	}
+
+	/**
+	 * The previous implementation of getAggregateCount, with a separate pipeline for the highlights,
+	 * to compare with {@link #getAggregateCount()}: the single pipeline reads the collection once instead of twice
+	 */
+	@Benchmark
+	public JsonArray getAggregateCountTwoPipelines() {
+		List<Document> list = new ArrayList<>();
+		list.add(new Document("$project", new Document("field", "$ora")));
+		list.add(new Document("$group", new Document("_id", "$field").append("count", new Document("$sum", 1))));
+		list.add(new Document("$sort", new Document("count", -1)));
+		list.add(new Document("$limit", 20));
+		List<Document> listWithMatch = new ArrayList<>();
+		listWithMatch.add(new Document("$match", new Document("anno", "2014")));
+		listWithMatch.addAll(list);
+
+		JsonObject highlightCounts = new JsonObject();
+		collection.aggregate(listWithMatch).forEach((Block<Document>) document -> highlightCounts.put(
+				String.valueOf(document.get("_id")), document.getInteger("count")));
+		JsonArray result = new JsonArray();
+		collection.aggregate(list).forEach((Block<Document>) document -> {
+			String id = String.valueOf(document.get("_id"));
+			int highlightCount = highlightCounts.getInteger(id, 0);
+			result.add(new JsonObject()
+					.put("_id", id)
+					.put("count", document.getInteger("count") - highlightCount)
+					.put("highlight", highlightCount));
+		});
+		return result;
+	}
+
+	@Benchmark
+	public JsonArray getAllAccidents() {
+		return dao.getAllAccidents("2014", "3", null);
+	}
+
+	@Benchmark
+	public JsonObject getAccidentsPage() {
+		return dao.getAccidentsPage("2014", null, null, null, 1000);
+	}
+
+	@Benchmark
+	public JsonArray getAccidentsDetails() {
+		return dao.getAccidentsDetails(Arrays.asList("00000010", "00001000", "00100000"), null);
+	}
+
+	@Benchmark
+	public JsonArray getDistrictsAccidents() {
+		return dao.getDistrictsAccidents("2014", "05", null, "18");
+	}
+
+	@Benchmark
+	public JsonArray getAccidentsByDay() {
+		return dao.getAccidentsByDay();
+	}
+
+	@Benchmark
+	public JsonObject getTotals() {
+		return dao.getTotals();
+	}
+}
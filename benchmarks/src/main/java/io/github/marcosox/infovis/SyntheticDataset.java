@@ -0,0 +1,67 @@
+package io.github.marcosox.infovis;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic accidents, shaped like the documents of the accidents collection.
+ * The same size and seed always generate the same documents.
+ */
+class SyntheticDataset {
+	private static final long SEED = 42;
+	private static final int STREETS = 5000;
+	private static final int DISTRICTS = 20;
+	private static final String[] VEHICLES = {"autovettura", "motociclo", "ciclomotore", "autocarro", "bicicletta", "autobus"};
+	private static final String[] PEOPLE = {"conducente", "passeggero", "pedone"};
+
+	private SyntheticDataset() {
+	}
+
+	/**
+	 * @param size number of accidents
+	 * @return the generated accidents
+	 */
+	static List<Document> generate(int size) {
+		Random random = new Random(SEED);
+		List<Document> documents = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			int district = 1 + random.nextInt(DISTRICTS);
+			// streets follow a long tail distribution, as in the real data
+			int street = (int) (STREETS * Math.pow(random.nextDouble(), 3));
+			List<Document> vehicles = new ArrayList<>();
+			List<Document> people = new ArrayList<>();
+			int vehiclesCount = 1 + random.nextInt(3);
+			for (int v = 0; v < vehiclesCount; v++) {
+				vehicles.add(new Document("tipo", VEHICLES[random.nextInt(VEHICLES.length)]));
+				people.add(new Document("tipo", PEOPLE[random.nextInt(PEOPLE.length)]));
+			}
+			documents.add(new Document("incidente", String.format("%08d", i))
+					.append("anno", String.valueOf(2012 + random.nextInt(5)))
+					.append("mese", String.format("%02d", 1 + random.nextInt(12)))
+					.append("giorno", String.format("%02d", 1 + random.nextInt(28)))
+					.append("ora", random.nextInt(24))
+					.append("numero_gruppo", district)
+					.append("strada", "VIA SINTETICA " + street)
+					.append("lat", String.format(Locale.ROOT, "%.6f", 41.80 + random.nextDouble() * 0.2))
+					.append("lon", String.format(Locale.ROOT, "%.6f", 12.40 + random.nextDouble() * 0.2))
+					.append("veicoli", vehicles)
+					.append("persone", people));
+		}
+		return documents;
+	}
+
+	/**
+	 * @param size number of accidents
+	 * @return an in-memory engine loaded with the generated accidents
+	 */
+	static AccidentsIndex index(int size) {
+		AccidentsIndex index = new AccidentsIndex();
+		generate(size).forEach(index::add);
+		index.build();
+		return index;
+	}
+}
@@ -0,0 +1,641 @@
+package io.github.marcosox.infovis;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Imports accidents from a file into the accidents collection.
+ * The file is read sequentially, and batches of records are parsed, normalized and written in parallel,
+ * each batch with one unordered bulk write, so the import is bound by MongoDB and not by a single parsing thread.
+ * Every accident is upserted by its {@code incidente} id, so importing the same file again replaces the accidents
+ * instead of duplicating them. The id has a unique index ({@link MongoDAO#UNIQUE_INDEX}): when two batches, or
+ * two processes, insert the same new accident at the same time, the losing upsert fails with a duplicate key error
+ * and is retried, replacing the accident inserted by the other one.
+ * Two formats are supported, chosen by the file extension:
+ * <ul>
+ * <li>{@code .csv}: a header row followed by one row per person involved, separated by commas or semicolons.
+ * The rows with the same id are one accident: the columns named {@code veicoli.<field>} and
+ * {@code persone.<field>} fill the elements of the {@code veicoli} and {@code persone} arrays, with one person per row
+ * and one vehicle per distinct set of vehicle values, the other columns are taken from the first row that has them.
+ * The columns are named after the document fields, the column names of the Rome open data files
+ * (Protocollo, Gruppo, STRADA1, DataOraIncidente, Latitude, Longitude, Progressivo, TipoVeicolo, StatoVeicolo,
+ * TipoPersona, AnnoNascita, Sesso, TipoLesione, Deceduto, CinturaCascoUtilizzato) are also recognized.
+ * The rows of an accident are usually consecutive, and are grouped in the same batch even when they are not.
+ * Rows of an accident already written by an earlier batch are merged into it at the end of the import,
+ * adding their people and vehicles instead of replacing the accident, see {@link Batches}</li>
+ * <li>{@code .json}: one JSON document per line, as written by mongoexport and read by mongoimport</li>
+ * </ul>
+ * The records are normalized to the types the queries expect: numeric {@code lat} and {@code lon},
+ * integer {@code ora} and {@code numero_gruppo}, and {@code anno}, {@code mese} and {@code giorno}
+ * as 4 and 2 digits strings, also derived from a date and time field if missing.
+ * Accidents without {@code numero_gruppo} are assigned the district containing their coordinates, see {@link Districts}.
+ * Records without an {@code incidente} id are rejected.
+ */
+class AccidentsImporter {
+	private static final int BATCH_SIZE = 5000;
+	private static final Map<String, String> ALIASES = new HashMap<>();
+	private static final Pattern DAY_FIRST = Pattern.compile("(\\d{1,2})/(\\d{1,2})/(\\d{4})(?:[ T]+(\\d{1,2})[:.](\\d{2}).*)?");
+	private static final Pattern YEAR_FIRST = Pattern.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2})(?:[ T]+(\\d{1,2})[:.](\\d{2}).*)?");
+	private static final String DATE_TIME = "data_ora";
+	private static final String VEHICLES = "veicoli";
+	private static final String PEOPLE = "persone";
+	private static final int MAX_ATTEMPTS = 3;
+
+	static {
+		ALIASES.put("protocollo", "incidente");
+		ALIASES.put("gruppo", "numero_gruppo");
+		ALIASES.put("strada1", "strada");
+		ALIASES.put("latitude", "lat");
+		ALIASES.put("latitudine", "lat");
+		ALIASES.put("longitude", "lon");
+		ALIASES.put("longitudine", "lon");
+		ALIASES.put("dataoraincidente", DATE_TIME);
+		ALIASES.put("progressivo", VEHICLES + ".progressivo");
+		ALIASES.put("tipoveicolo", VEHICLES + ".tipo");
+		ALIASES.put("statoveicolo", VEHICLES + ".stato");
+		ALIASES.put("tipopersona", PEOPLE + ".tipo");
+		ALIASES.put("annonascita", PEOPLE + ".anno_nascita");
+		ALIASES.put("sesso", PEOPLE + ".sesso");
+		ALIASES.put("tipolesione", PEOPLE + ".lesione");
+		ALIASES.put("deceduto", PEOPLE + ".deceduto");
+		ALIASES.put("cinturacascoutilizzato", PEOPLE + ".cintura_casco");
+	}
+
+	private final MongoDAO dao;
+	private final int threads;
+	private final Districts districts;
+
+	/**
+	 * @param dao       the accidents collection
+	 * @param threads   number of batches parsed and written in parallel
+	 * @param districts the district boundaries, to assign the accidents without a district
+	 */
+	AccidentsImporter(MongoDAO dao, int threads, Districts districts) {
+		this.dao = dao;
+		this.threads = threads;
+		this.districts = districts;
+	}
+
+	/**
+	 * Import a file
+	 *
+	 * @param file the file to import
+	 * @return the import report: records read, accidents written, records rejected, records merged into an accident
+	 * of an earlier batch, JSON records replaced by a later one with the same id, accidents inserted, matched and
+	 * modified, accidents assigned to a district, duration and throughput
+	 * @throws IOException              if the file cannot be read
+	 * @throws IllegalArgumentException if the file format is not supported
+	 */
+	JsonObject importFile(Path file) throws IOException {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		boolean csv = name.endsWith(".csv");
+		if (!csv && !name.endsWith(".json")) {
+			throw new IllegalArgumentException("unsupported file format, use .csv or .json");
+		}
+		long start = System.nanoTime();
+		Counters counters = new Counters();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Semaphore pending = new Semaphore(threads * 2);    // bounds the records held in memory
+		List<Future<?>> batches = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			List<String> header = null;
+			char separator = ',';
+			int idColumn = -1;
+			if (csv) {
+				String first = readRecord(reader);
+				if (first == null) {
+					throw new IllegalArgumentException("empty file");
+				}
+				separator = first.indexOf(';') >= 0 ? ';' : ',';
+				header = header(first, separator);
+				idColumn = header.indexOf("incidente");
+			}
+			// the records of an accident are never split between batches
+			Batches grouped = new Batches(BATCH_SIZE);
+			String record;
+			while ((record = csv ? readRecord(reader) : reader.readLine()) != null) {
+				if (record.trim().isEmpty()) {
+					continue;
+				}
+				List<List<String>> full = grouped.add(idColumn >= 0 ? column(record, separator, idColumn) : null, record);
+				if (full != null) {
+					batches.add(submit(pool, pending, full, header, separator, counters));
+				}
+			}
+			List<List<String>> last = grouped.take();
+			if (!last.isEmpty()) {
+				batches.add(submit(pool, pending, last, header, separator, counters));
+			}
+			for (Future<?> f : batches) {
+				f.get();
+			}
+			if (!grouped.getRepeated().isEmpty()) {
+				merge(grouped.getRepeated(), header, separator, counters);    // after the accidents they are merged into
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("import interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();    // a failed bulk write
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long records = counters.records.sum();
+		return new JsonObject()
+				.put("file", file.getFileName().toString())
+				.put("records", records)
+				.put("accidents", counters.written.sum())
+				.put("rejected", counters.rejected.sum())
+				.put("merged", counters.merged.sum())
+				.put("duplicates", counters.duplicates.sum())
+				.put("inserted", counters.inserted.sum())
+				.put("matched", counters.matched.sum())
+				.put("modified", counters.modified.sum())
+				.put("districtsAssigned", counters.districtsAssigned.sum())
+				.put("seconds", seconds)
+				.put("recordsPerSecond", seconds > 0 ? (long) (records / seconds) : records);
+	}
+
+	/**
+	 * Parse and write a batch on the pool, waiting if too many batches are pending
+	 */
+	private Future<?> submit(ExecutorService pool, Semaphore pending, List<List<String>> batch, List<String> header, char separator,
+							 Counters counters) throws InterruptedException {
+		pending.acquire();
+		return pool.submit(() -> {
+			try {
+				write(batch, header, separator, counters);
+			} finally {
+				pending.release();
+			}
+		});
+	}
+
+	/**
+	 * Parse a batch of accidents and upsert them with an unordered bulk write
+	 *
+	 * @param batch  the records of each accident
+	 * @param header the CSV columns, null for JSON records
+	 */
+	private void write(List<List<String>> batch, List<String> header, char separator, Counters counters) {
+		Map<String, Document> accidents = new LinkedHashMap<>();    // the last JSON record wins if an id is repeated
+		for (List<String> records : batch) {
+			Document accident = header != null ? parse(records, header, separator) : parse(records.get(0));
+			if (accident != null) {
+				if (assignDistrict(accident)) {
+					counters.districtsAssigned.increment();
+				}
+				if (accidents.put(accident.getString("incidente"), accident) != null) {
+					counters.duplicates.increment();
+				}
+			} else {
+				counters.rejected.add(records.size());
+			}
+			counters.records.add(records.size());
+		}
+		if (accidents.isEmpty()) {
+			return;
+		}
+		List<WriteModel<Document>> writes = new ArrayList<>(accidents.size());
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+		accidents.forEach((id, accident) -> writes.add(new ReplaceOneModel<>(new Document("incidente", id), accident, upsert)));
+		counters.written.add(writes.size());
+		bulkWrite(writes, counters);
+	}
+
+	/**
+	 * Merge the CSV rows of accidents written by an earlier batch: their people are added to the accident,
+	 * their vehicles are added if not already present, and their other fields are only set if the accident is missing
+	 *
+	 * @param repeated the rows of each accident, by id
+	 * @param header   the CSV columns
+	 */
+	private void merge(Map<String, List<String>> repeated, List<String> header, char separator, Counters counters) {
+		List<WriteModel<Document>> writes = new ArrayList<>(repeated.size());
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+		for (List<String> records : repeated.values()) {
+			counters.records.add(records.size());
+			Document accident = parse(records, header, separator);
+			if (accident == null) {
+				counters.rejected.add(records.size());
+				continue;
+			}
+			counters.merged.add(records.size());
+			String id = (String) accident.remove("incidente");
+			Object vehicles = accident.remove(VEHICLES);
+			Object people = accident.remove(PEOPLE);
+			Document update = new Document();
+			if (vehicles != null) {
+				update.append("$addToSet", new Document(VEHICLES, new Document("$each", vehicles)));
+			}
+			if (people != null) {
+				update.append("$push", new Document(PEOPLE, new Document("$each", people)));
+			}
+			if (!accident.isEmpty()) {
+				update.append("$setOnInsert", accident);
+			}
+			if (!update.isEmpty()) {
+				writes.add(new UpdateOneModel<>(new Document("incidente", id), update, upsert));
+			}
+		}
+		if (!writes.isEmpty()) {
+			bulkWrite(writes, counters);
+		}
+	}
+
+	/**
+	 * Run an unordered bulk write of upserts, retrying the upserts failed with a duplicate key error
+	 */
+	private void bulkWrite(List<WriteModel<Document>> writes, Counters counters) {
+		MongoCollection<Document> collection = dao.getDatabase().getCollection(dao.getCollectionName());
+		List<WriteModel<Document>> pending = writes;
+		for (int attempt = 1; !pending.isEmpty(); attempt++) {
+			List<WriteModel<Document>> retries = new ArrayList<>();
+			BulkWriteResult result;
+			try {
+				result = collection.bulkWrite(pending, new BulkWriteOptions().ordered(false));
+			} catch (MongoBulkWriteException e) {
+				// an accident inserted by another batch after the upsert looked for it: the retry updates it
+				for (BulkWriteError error : e.getWriteErrors()) {
+					if (error.getCategory() != ErrorCategory.DUPLICATE_KEY || attempt == MAX_ATTEMPTS) {
+						throw e;
+					}
+					retries.add(pending.get(error.getIndex()));
+				}
+				result = e.getWriteResult();
+			}
+			counters.inserted.add(result.getUpserts().size());
+			counters.matched.add(result.getMatchedCount());
+			counters.modified.add(result.isModifiedCountAvailable() ? result.getModifiedCount() : result.getMatchedCount());
+			pending = retries;
+		}
+	}
+
+	/**
+	 * Set the district of an accident without one, from its coordinates
+	 *
+	 * @return true if the district was assigned
+	 */
+	private boolean assignDistrict(Document accident) {
+		Object lat = accident.get("lat");
+		Object lon = accident.get("lon");
+		if (accident.containsKey("numero_gruppo") || !(lat instanceof Number) || !(lon instanceof Number)) {
+			return false;
+		}
+		Integer district = districts.locate(((Number) lat).doubleValue(), ((Number) lon).doubleValue());
+		if (district == null) {
+			return false;
+		}
+		accident.put("numero_gruppo", district);
+		return true;
+	}
+
+	/**
+	 * @param first the header row
+	 * @return the field of each column, with the Rome open data column names replaced by the document fields
+	 */
+	static List<String> header(String first, char separator) {
+		List<String> header = new ArrayList<>();
+		for (String column : splitCsv(first, separator)) {
+			String field = column.trim();
+			header.add(ALIASES.getOrDefault(field.toLowerCase(Locale.ROOT), field));
+		}
+		return header;
+	}
+
+	/**
+	 * @param record a JSON document
+	 * @return the normalized accident, null if the record is invalid
+	 */
+	static Document parse(String record) {
+		try {
+			return normalize(Document.parse(record));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param records the CSV rows of an accident, one per person involved
+	 * @param header  the CSV columns
+	 * @return the normalized accident, null if the records are invalid
+	 */
+	static Document parse(List<String> records, List<String> header, char separator) {
+		Document accident = new Document();
+		Set<Document> vehicles = new LinkedHashSet<>();    // a vehicle is repeated on the row of each of its occupants
+		List<Document> people = new ArrayList<>();
+		for (String record : records) {
+			List<String> values = splitCsv(record, separator);
+			Document vehicle = new Document();
+			Document person = new Document();
+			for (int i = 0; i < header.size() && i < values.size(); i++) {
+				String field = header.get(i);
+				String value = values.get(i).trim();
+				if (value.isEmpty() || field.isEmpty()) {
+					continue;
+				}
+				if (field.startsWith(VEHICLES + ".")) {
+					vehicle.put(field.substring(VEHICLES.length() + 1), value);
+				} else if (field.startsWith(PEOPLE + ".")) {
+					person.put(field.substring(PEOPLE.length() + 1), value);
+				} else {
+					accident.putIfAbsent(field, value);
+				}
+			}
+			if (!vehicle.isEmpty()) {
+				vehicles.add(vehicle);
+			}
+			if (!person.isEmpty()) {
+				people.add(person);
+			}
+		}
+		if (!vehicles.isEmpty()) {
+			accident.put(VEHICLES, new ArrayList<>(vehicles));
+		}
+		if (!people.isEmpty()) {
+			accident.put(PEOPLE, people);
+		}
+		return normalize(accident);
+	}
+
+	/**
+	 * Convert the fields used by the queries to the types they expect
+	 *
+	 * @param accident the parsed record
+	 * @return the accident, null if it has no id
+	 */
+	static Document normalize(Document accident) {
+		accident.remove("_id");    // the existing _id is kept when replacing, new accidents get a new one
+		Object id = accident.get("incidente");
+		if (id == null || String.valueOf(id).trim().isEmpty()) {
+			return null;
+		}
+		accident.put("incidente", String.valueOf(id).trim());
+
+		Object dateTime = accident.remove(DATE_TIME);
+		if (dateTime != null) {
+			setDate(accident, dateTime.toString().trim());
+		}
+		setNumber(accident, "lat", coordinate(accident.get("lat")));
+		setNumber(accident, "lon", coordinate(accident.get("lon")));
+		setNumber(accident, "ora", integer(accident.get("ora")));
+		setNumber(accident, "numero_gruppo", integer(accident.get("numero_gruppo")));
+		setDigits(accident, "anno", 4);
+		setDigits(accident, "mese", 2);
+		setDigits(accident, "giorno", 2);
+		return accident;
+	}
+
+	/**
+	 * Set the date fields that are missing from a date and time, as dd/MM/yyyy HH:mm or yyyy-MM-dd HH:mm
+	 */
+	private static void setDate(Document accident, String dateTime) {
+		Matcher matcher = DAY_FIRST.matcher(dateTime);
+		String year, month, day;
+		if (matcher.matches()) {
+			day = matcher.group(1);
+			month = matcher.group(2);
+			year = matcher.group(3);
+		} else if ((matcher = YEAR_FIRST.matcher(dateTime)).matches()) {
+			year = matcher.group(1);
+			month = matcher.group(2);
+			day = matcher.group(3);
+		} else {
+			return;
+		}
+		accident.putIfAbsent("anno", year);
+		accident.putIfAbsent("mese", month);
+		accident.putIfAbsent("giorno", day);
+		if (matcher.group(4) != null) {
+			accident.putIfAbsent("ora", matcher.group(4));
+		}
+	}
+
+	private static void setNumber(Document accident, String field, Number value) {
+		if (value != null) {
+			accident.put(field, value);
+		} else {
+			accident.remove(field);
+		}
+	}
+
+	/**
+	 * Zero pad a numeric date field to the given number of digits
+	 */
+	private static void setDigits(Document accident, String field, int digits) {
+		Integer value = integer(accident.get(field));
+		if (value != null) {
+			accident.put(field, String.format("%0" + digits + "d", value));
+		} else {
+			accident.remove(field);
+		}
+	}
+
+	/**
+	 * @return the coordinate, also with a decimal comma, null if missing or invalid
+	 */
+	private static Double coordinate(Object value) {
+		double parsed = AccidentsIndex.parseCoordinate(value instanceof String ? ((String) value).replace(',', '.') : value);
+		return Double.isNaN(parsed) ? null : parsed;
+	}
+
+	/**
+	 * @return the integer value, also from a string or a decimal number, null if missing or invalid
+	 */
+	private static Integer integer(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof String) {
+			try {
+				return (int) Double.parseDouble(((String) value).trim().replace(',', '.'));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read a CSV record, which spans more lines if a quoted value contains line breaks
+	 *
+	 * @return the record, null at the end of the file
+	 */
+	private static String readRecord(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			return null;
+		}
+		StringBuilder record = new StringBuilder(line);
+		while (quotes(record) % 2 != 0 && (line = reader.readLine()) != null) {
+			record.append('\n').append(line);
+		}
+		return record.toString();
+	}
+
+	private static int quotes(CharSequence text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '"') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the trimmed value of a column of a CSV record, empty if missing
+	 */
+	private static String column(String record, char separator, int index) {
+		List<String> values = splitCsv(record, separator);
+		return index < values.size() ? values.get(index).trim() : "";
+	}
+
+	/**
+	 * Split a CSV record, with values optionally enclosed in double quotes and "" escaping a quote
+	 */
+	static List<String> splitCsv(String record, char separator) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < record.length(); i++) {
+			char c = record.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < record.length() && record.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					value.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == separator) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * Groups the records read from a file into batches, keeping all the records of an accident in the same batch.
+	 * The records of an accident whose batch has already been submitted are kept apart, to be merged at the end:
+	 * the ids of the submitted accidents are kept for the whole import, a few bytes per accident.
+	 */
+	static class Batches {
+		private final int batchSize;
+		private final Set<String> submitted = new HashSet<>();
+		private final Map<String, List<String>> repeated = new LinkedHashMap<>();
+		private final Map<String, List<String>> accidents = new HashMap<>();
+		private List<List<String>> batch = new ArrayList<>();
+		private int records = 0;
+
+		/**
+		 * @param batchSize number of records of a batch, exceeded only to keep the records of an accident together
+		 */
+		Batches(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * @param id     the accident id of the record, null or empty if unknown, as for JSON records
+		 * @param record the record
+		 * @return the full batch to submit before this record, null if the batch is not full yet
+		 */
+		List<List<String>> add(String id, String record) {
+			boolean known = id != null && !id.isEmpty();
+			List<String> accident = known ? accidents.get(id) : null;
+			if (accident == null && known && submitted.contains(id)) {
+				repeated.computeIfAbsent(id, k -> new ArrayList<>()).add(record);
+				return null;
+			}
+			List<List<String>> full = accident == null && records >= batchSize ? take() : null;
+			if (accident == null) {
+				accident = new ArrayList<>(1);
+				batch.add(accident);
+				if (known) {
+					accidents.put(id, accident);
+				}
+			}
+			accident.add(record);
+			records++;
+			return full;
+		}
+
+		/**
+		 * @return the current batch, possibly empty, which is replaced by a new one
+		 */
+		List<List<String>> take() {
+			List<List<String>> taken = batch;
+			submitted.addAll(accidents.keySet());
+			accidents.clear();
+			batch = new ArrayList<>();
+			records = 0;
+			return taken;
+		}
+
+		/**
+		 * @return the records of the accidents of already submitted batches, by id
+		 */
+		Map<String, List<String>> getRepeated() {
+			return repeated;
+		}
+	}
+
+	/**
+	 * Import counters, updated by the parallel batches
+	 */
+	private static class Counters {
+		private final LongAdder records = new LongAdder();
+		private final LongAdder written = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder merged = new LongAdder();
+		private final LongAdder duplicates = new LongAdder();
+		private final LongAdder inserted = new LongAdder();
+		private final LongAdder matched = new LongAdder();
+		private final LongAdder modified = new LongAdder();
+		private final LongAdder districtsAssigned = new LongAdder();
+	}
+}
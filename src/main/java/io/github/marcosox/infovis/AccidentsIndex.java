@@ -0,0 +1,512 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * In-memory columnar copy of the accidents collection.
+ * Each indexed field is stored in a {@link DictionaryColumn}, and the aggregation queries are answered
+ * by scanning the int codes of the columns, returning the same results as the {@link MongoDAO} queries.
+ * The filter fields also have a bitmap index for each value, so that a combination of filters
+ * is an intersection of bitmaps and filtered counts are bitmap cardinalities.
+ */
+class AccidentsIndex {
+	/**
+	 * Fields loaded into the index
+	 */
+	static final List<String> FIELDS = Arrays.asList(
+			"anno", "mese", "giorno", "ora", "numero_gruppo", "strada", "lat", "lon", "incidente");
+	/**
+	 * Fields with a bitmap index
+	 */
+	static final List<String> FILTER_FIELDS = Arrays.asList("anno", "mese", "giorno", "ora", "numero_gruppo");
+
+	private final Map<String, DictionaryColumn> columns = new LinkedHashMap<>();
+	private int size = 0;
+	private SpatialIndex spatialIndex = null;
+
+	AccidentsIndex() {
+		for (String field : FIELDS) {
+			columns.put(field, new DictionaryColumn(field));
+		}
+	}
+
+	/**
+	 * Read an index written by {@link #write(DataOutputStream)}
+	 *
+	 * @param in the snapshot buffer, positioned at the start of the index
+	 * @return the built index
+	 * @throws IOException if the buffer does not contain a valid index
+	 */
+	static AccidentsIndex read(ByteBuffer in) throws IOException {
+		AccidentsIndex index = new AccidentsIndex();
+		index.size = in.getInt();
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			DictionaryColumn column = DictionaryColumn.read(in);
+			if (!index.columns.containsKey(column.getName()) || column.size() != index.size) {
+				throw new IOException("unexpected column " + column.getName());
+			}
+			index.columns.put(column.getName(), column);
+		}
+		if (count != FIELDS.size()) {
+			throw new IOException("missing columns");
+		}
+		index.spatialIndex = SpatialIndex.read(in);
+		return index;
+	}
+
+	/**
+	 * Write the index to a snapshot, only after {@link #build()}
+	 *
+	 * @param out the snapshot stream
+	 * @throws IOException if the index cannot be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(columns.size());
+		for (DictionaryColumn column : columns.values()) {
+			column.write(out);
+		}
+		spatialIndex.write(out);
+	}
+
+	/**
+	 * Append an accident to the index
+	 *
+	 * @param document the accident document
+	 */
+	void add(Document document) {
+		for (DictionaryColumn column : columns.values()) {
+			column.add(document.get(column.getName()));
+		}
+		size++;
+	}
+
+	/**
+	 * Build the bitmap indexes and release the unused memory once all the accidents have been added
+	 */
+	void build() {
+		columns.values().forEach(DictionaryColumn::trim);
+		FILTER_FIELDS.forEach(field -> columns.get(field).buildBitmaps());
+		spatialIndex = new SpatialIndex(coordinates(columns.get("lat")), coordinates(columns.get("lon")));
+	}
+
+	/**
+	 * @param column a column storing coordinates as strings or numbers
+	 * @return the parsed coordinate of each row, NaN if missing or invalid
+	 */
+	private double[] coordinates(DictionaryColumn column) {
+		double[] parsed = new double[column.cardinality()];
+		for (int code = 0; code < parsed.length; code++) {
+			parsed[code] = parseCoordinate(column.value(code));
+		}
+		double[] result = new double[size];
+		for (int row = 0; row < size; row++) {
+			result[row] = parsed[column.code(row)];
+		}
+		return result;
+	}
+
+	/**
+	 * @param value a coordinate, as a string or a number
+	 * @return the parsed coordinate, NaN if missing or invalid
+	 */
+	static double parseCoordinate(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Double.parseDouble(((String) value).trim());
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * @param value a stored coordinate
+	 * @return true if the coordinate is set, as a string (mongoimport) or a number (ingestion endpoint)
+	 */
+	static boolean isCoordinate(Object value) {
+		return value instanceof String || value instanceof Number;
+	}
+
+	/**
+	 * @return number of accidents in the index
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param field a field name
+	 * @return true if the field can be aggregated from the index
+	 */
+	boolean supports(String field) {
+		return field == null || field.isEmpty() || columns.containsKey(field);
+	}
+
+	/**
+	 * @param field a field name, anno if null or empty
+	 * @return true if the field has a bitmap index, so its values are counted without scanning the rows
+	 */
+	boolean hasBitmaps(String field) {
+		DictionaryColumn column = columns.get(field == null || field.isEmpty() ? "anno" : field);
+		return column != null && column.hasBitmaps();
+	}
+
+	/**
+	 * Same as {@link MongoDAO#getCount(String, int)}
+	 */
+	JsonArray getCount(String field, int limit) {
+		DictionaryColumn column = columns.get(field == null || field.isEmpty() ? "anno" : field);
+		int[] counts = countAll(column);
+		JsonArray result = new JsonArray();
+		for (int code : sortByCount(counts, limit, true)) {
+			result.add(new JsonObject().put("_id", column.value(code)).put("count", counts[code]));
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link MongoDAO#getFacets(Map, List, int)}.
+	 * Without a filter the counts of the fields with bitmaps are their cardinalities,
+	 * otherwise the matching rows are scanned once, counting the values of all the fields together.
+	 */
+	JsonObject getFacets(Map<String, Object> filter, List<String> fields, int limit) {
+		RoaringBitmap rows = select(filter);
+		DictionaryColumn[] facetColumns = new DictionaryColumn[fields.size()];
+		int[][] counts = new int[fields.size()][];
+		for (int i = 0; i < facetColumns.length; i++) {
+			facetColumns[i] = columns.get(fields.get(i));
+			counts[i] = rows == null ? countAll(facetColumns[i]) : new int[facetColumns[i].cardinality()];
+		}
+		if (rows != null) {
+			rows.forEach((int row) -> {
+				for (int i = 0; i < facetColumns.length; i++) {
+					counts[i][facetColumns[i].code(row)]++;
+				}
+			});
+		}
+		JsonObject result = new JsonObject();
+		for (int i = 0; i < facetColumns.length; i++) {
+			JsonArray values = new JsonArray();
+			for (int code : sortByCount(counts[i], limit, true)) {
+				values.add(new JsonObject().put("_id", facetColumns[i].value(code)).put("count", counts[i][code]));
+			}
+			result.put(fields.get(i), values);
+		}
+		return new JsonObject()
+				.put("total", rows == null ? size : rows.getCardinality())
+				.put("facets", result);
+	}
+
+	/**
+	 * Same as {@link MongoDAO#countDistinct(String, Map)}
+	 */
+	int countDistinct(String field, Map<String, Object> filter) {
+		DictionaryColumn column = columns.get(field);
+		RoaringBitmap rows = select(filter);
+		if (rows == null) {
+			return column.cardinality();
+		}
+		BitSet values = new BitSet(column.cardinality());
+		rows.forEach((int row) -> values.set(column.code(row)));
+		return values.cardinality();
+	}
+
+	/**
+	 * Same as {@link MongoDAO#getDistrictsAccidents(String, String, String, String)}
+	 */
+	JsonArray getDistrictsAccidents(String anno, String mese, String giorno, String ora) {
+		RoaringBitmap filter = new Filter()
+				.add("anno", anno)
+				.add("mese", mese)
+				.add("giorno", giorno)
+				.add("ora", ora == null || ora.isEmpty() ? null : Integer.valueOf(ora))
+				.rows();
+		DictionaryColumn district = columns.get("numero_gruppo");
+		int[] counts = new int[district.cardinality()];
+		for (int code = 0; code < counts.length; code++) {
+			counts[code] = filter == null
+					? district.rows(code).getCardinality()
+					: RoaringBitmap.andCardinality(filter, district.rows(code));
+		}
+		long total = filter == null ? size : filter.getLongCardinality();
+		JsonArray result = new JsonArray();
+		for (int code = 0; code < counts.length; code++) {
+			if (counts[code] > 0) {
+				result.add(new JsonObject()
+						.put("municipio", district.value(code))
+						.put("incidenti", counts[code])
+						.put("totale", total));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link MongoDAO#getAccidentsByDay()}
+	 */
+	JsonArray getAccidentsByDay() {
+		DictionaryColumn anno = columns.get("anno");
+		DictionaryColumn mese = columns.get("mese");
+		DictionaryColumn giorno = columns.get("giorno");
+		int months = mese.cardinality();
+		int days = giorno.cardinality();
+		int[] counts = new int[anno.cardinality() * months * days];
+		for (int row = 0; row < size; row++) {
+			counts[(anno.code(row) * months + mese.code(row)) * days + giorno.code(row)]++;
+		}
+		JsonArray result = new JsonArray();
+		for (int key = 0; key < counts.length; key++) {
+			if (counts[key] > 0) {
+				String data = anno.value(key / days / months) + "-" + mese.value(key / days % months) + "-" + giorno.value(key % days);
+				result.add(new JsonObject().put("data", data).put("count", counts[key]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link MongoDAO#getAggregateCount(String, int, String, String, boolean)}.
+	 * When both fields have bitmaps the highlights are bitmap intersections, without scanning the rows.
+	 */
+	JsonArray getAggregateCount(String field, int limit, String highlightField, String highlightValue, boolean sortDescending) {
+		DictionaryColumn column = columns.get(field == null || field.isEmpty() ? "anno" : field);
+		int[] counts = countAll(column);
+		int[] highlights;
+		if (highlightField != null && !highlightField.isEmpty() && highlightValue != null && !highlightValue.isEmpty()) {
+			RoaringBitmap highlighted = new Filter().add(highlightField, highlightValue).rows();
+			highlights = new int[column.cardinality()];
+			if (column.hasBitmaps()) {
+				for (int code = 0; code < highlights.length; code++) {
+					highlights[code] = RoaringBitmap.andCardinality(highlighted, column.rows(code));
+				}
+			} else {
+				highlighted.forEach((int row) -> highlights[column.code(row)]++);
+			}
+		} else {
+			highlights = counts;
+		}
+		JsonArray result = new JsonArray();
+		for (int code : sortByCount(counts, limit, sortDescending)) {
+			result.add(new JsonObject()
+					.put("_id", String.valueOf(column.value(code)))
+					.put("count", counts[code] - highlights[code])
+					.put("highlight", highlights[code]));
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link MongoDAO#forEachAccident(String, String, String, Predicate)}
+	 */
+	void forEachAccident(String year, String district, String hour, Predicate<JsonObject> consumer) {
+		RoaringBitmap filter = mapFilter(year, district, hour);
+		DictionaryColumn lat = columns.get("lat");
+		DictionaryColumn lon = columns.get("lon");
+		DictionaryColumn id = columns.get("incidente");
+		IntIterator rows = (filter == null ? RoaringBitmap.bitmapOfRange(0, size) : filter).getIntIterator();
+		while (rows.hasNext()) {
+			int row = rows.next();
+			Object latValue = lat.value(lat.code(row));
+			Object lonValue = lon.value(lon.code(row));
+			if (isCoordinate(latValue) && isCoordinate(lonValue)) {
+				boolean proceed = consumer.test(new JsonObject()
+						.put("lat", latValue)
+						.put("lon", lonValue)
+						.put("protocollo", id.value(id.code(row))));
+				if (!proceed) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Aggregate the geocoded accidents of a map tile into clusters, see {@link SpatialIndex#getTile}
+	 *
+	 * @param year     year filter, ignored if null
+	 * @param district district filter, ignored if null
+	 * @param hour     hour filter, ignored if null
+	 */
+	JsonObject getTile(int z, int x, int y, int resolution, String year, String district, String hour) {
+		RoaringBitmap filter = mapFilter(year, district, hour);
+		return spatialIndex.getTile(z, x, y, resolution, filter, columns.get("incidente"));
+	}
+
+	/**
+	 * Geocoded accidents inside a bounding box, for example the map viewport.
+	 * The index is only read until the limit is exceeded, so the time does not depend on the size of the box.
+	 *
+	 * @param limit maximum number of accidents returned
+	 * @return an object with the array items of objects {lat,lon,protocollo},
+	 * and truncated set to true if some accidents were not returned
+	 */
+	JsonObject getAccidentsInBox(double south, double west, double north, double east, String year, String district, String hour,
+								 int limit) {
+		DictionaryColumn lat = columns.get("lat");
+		DictionaryColumn lon = columns.get("lon");
+		DictionaryColumn id = columns.get("incidente");
+		JsonArray items = new JsonArray();
+		boolean[] truncated = {false};
+		spatialIndex.forEachInBox(south, west, north, east, mapFilter(year, district, hour), row -> {
+			if (items.size() == limit) {
+				truncated[0] = true;
+				return false;
+			}
+			items.add(new JsonObject()
+					.put("lat", lat.value(lat.code(row)))
+					.put("lon", lon.value(lon.code(row)))
+					.put("protocollo", id.value(id.code(row))));
+			return true;
+		});
+		return new JsonObject()
+				.put("items", items)
+				.put("truncated", truncated[0]);
+	}
+
+	/**
+	 * Count the geocoded accidents inside a polygon, grouped by a field
+	 *
+	 * @param polygon the polygon
+	 * @param field   the field to group by, anno if null or empty
+	 * @param limit   maximum number of values returned, ignored if not positive
+	 * @return an object with the number of accidents in the polygon and the array counts of objects {_id,count},
+	 * sorted by descending count
+	 */
+	JsonObject getPolygonAccidents(Polygon polygon, String field, int limit, String year, String district, String hour) {
+		DictionaryColumn column = columns.get(field == null || field.isEmpty() ? "anno" : field);
+		if (column == null) {
+			throw new IllegalArgumentException("field " + field + " is not loaded in memory");
+		}
+		int[] counts = new int[column.cardinality()];
+		int[] total = {0};
+		spatialIndex.forEachInPolygon(polygon, mapFilter(year, district, hour), row -> {
+			counts[column.code(row)]++;
+			total[0]++;
+			return true;
+		});
+		JsonArray result = new JsonArray();
+		for (int code : sortByCount(counts, limit, true)) {
+			result.add(new JsonObject().put("_id", column.value(code)).put("count", counts[code]));
+		}
+		return new JsonObject().put("count", total[0]).put("counts", result);
+	}
+
+	/**
+	 * @return the rows matching the map filters, null if there is no filter
+	 */
+	private RoaringBitmap mapFilter(String year, String district, String hour) {
+		return new Filter()
+				.add("anno", year)
+				.add("numero_gruppo", district == null || district.isEmpty() ? null : Integer.valueOf(district))
+				.add("ora", hour == null || hour.isEmpty() ? null : Integer.valueOf(hour))
+				.rows();
+	}
+
+	/**
+	 * Select the accidents matching some field values
+	 *
+	 * @param values field values to match, null or empty values are ignored
+	 * @return the matching rows, or null if there is no filter
+	 */
+	RoaringBitmap select(Map<String, Object> values) {
+		Filter filter = new Filter();
+		values.forEach(filter::add);
+		return filter.rows();
+	}
+
+	/**
+	 * @param values field values to match, null or empty values are ignored
+	 * @return true if no value is set, so {@link #select(Map)} matches all the rows
+	 */
+	static boolean isEmpty(Map<String, Object> values) {
+		return values == null || values.values().stream().allMatch(value -> value == null || "".equals(value));
+	}
+
+	/**
+	 * @param column a column
+	 * @return the number of rows for each value code of the column
+	 */
+	private int[] countAll(DictionaryColumn column) {
+		int[] counts = new int[column.cardinality()];
+		if (column.hasBitmaps()) {
+			for (int code = 0; code < counts.length; code++) {
+				counts[code] = column.rows(code).getCardinality();
+			}
+		} else {
+			for (int row = 0; row < size; row++) {
+				counts[column.code(row)]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @param counts         count of each value code
+	 * @param limit          maximum number of codes to return, ignored if not positive
+	 * @param sortDescending true to sort by descending count
+	 * @return the codes with a non zero count, sorted by count
+	 */
+	private static List<Integer> sortByCount(int[] counts, int limit, boolean sortDescending) {
+		List<Integer> codes = new ArrayList<>();
+		for (int code = 0; code < counts.length; code++) {
+			if (counts[code] > 0) {
+				codes.add(code);
+			}
+		}
+		Comparator<Integer> byCount = Comparator.comparingInt(code -> counts[code]);
+		codes.sort(sortDescending ? byCount.reversed() : byCount);
+		return limit > 0 && limit < codes.size() ? codes.subList(0, limit) : codes;
+	}
+
+	/**
+	 * Equality filter on one or more indexed fields, as an intersection of the rows having each value
+	 */
+	private class Filter {
+		private RoaringBitmap rows = null;
+
+		/**
+		 * @param field the field to filter on
+		 * @param value the value to match, ignored if null or empty
+		 * @return this filter
+		 */
+		Filter add(String field, Object value) {
+			if (value == null || "".equals(value)) {
+				return this;
+			}
+			DictionaryColumn column = columns.get(field);
+			int code = column == null ? -1 : column.codeOf(value);
+			RoaringBitmap matching = code < 0 ? new RoaringBitmap() : column.rows(code);
+			rows = rows == null ? matching.clone() : RoaringBitmap.and(rows, matching);
+			return this;
+		}
+
+		/**
+		 * @return the matching rows, or null if no field was added
+		 */
+		RoaringBitmap rows() {
+			return rows;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per endpoint admission control.
+ * Every endpoint runs at most a maximum number of requests at a time, further requests wait in a bounded queue,
+ * and requests arriving when the queue is full are rejected, so an overload is answered with quick rejections
+ * instead of piling up work on MongoDB and on the heap.
+ * The limits of every endpoint are read from the {@code admission} configuration object,
+ * with the route path as key and the {@code default} key for the endpoints without specific limits:
+ * <pre>
+ * {"default": {"maxConcurrent": 64, "maxQueue": 256}, "/GetGeocodedAccidents": {"maxConcurrent": 4, "maxQueue": 16}}
+ * </pre>
+ * It can be shared by verticles on different event loops: admitted requests resume on their own context.
+ */
+class AdmissionControl {
+	private final JsonObject config;
+	private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+	/**
+	 * @param config the admission configuration, may be null to use the default limits for every endpoint
+	 */
+	AdmissionControl(JsonObject config) {
+		this.config = config != null ? config : new JsonObject();
+	}
+
+	/**
+	 * @param route the route path
+	 * @return the limiter of the route
+	 */
+	Limiter get(String route) {
+		return limiters.computeIfAbsent(route, k -> {
+			JsonObject defaults = config.getJsonObject("default", new JsonObject());
+			JsonObject limits = config.getJsonObject(route, new JsonObject());
+			return new Limiter(
+					limits.getInteger("maxConcurrent", defaults.getInteger("maxConcurrent", ConfigurationConstants.DEFAULT_MAX_CONCURRENT)),
+					limits.getInteger("maxQueue", defaults.getInteger("maxQueue", ConfigurationConstants.DEFAULT_MAX_QUEUE)));
+		});
+	}
+
+	/**
+	 * Limits the concurrent requests of an endpoint
+	 */
+	static class Limiter {
+		private final int maxConcurrent;
+		private final int maxQueue;
+		private final Queue<Runnable> queue = new ArrayDeque<>();
+		private int running = 0;
+
+		/**
+		 * @param maxConcurrent maximum number of requests running at the same time, 0 for no limit
+		 * @param maxQueue      maximum number of requests waiting to run
+		 */
+		Limiter(int maxConcurrent, int maxQueue) {
+			this.maxConcurrent = maxConcurrent;
+			this.maxQueue = maxQueue;
+		}
+
+		/**
+		 * Run a request now if there is a free slot, otherwise queue it.
+		 * Every admitted request must call {@link #release()} exactly once when it is complete.
+		 *
+		 * @param context  the request context
+		 * @param admitted runs the request, on the request context
+		 * @return false if the request was rejected because the queue is full
+		 */
+		boolean acquire(Context context, Handler<Void> admitted) {
+			synchronized (this) {
+				if (maxConcurrent > 0 && running >= maxConcurrent) {
+					if (queue.size() >= maxQueue) {
+						return false;
+					}
+					queue.add(() -> context.runOnContext(admitted));
+					return true;
+				}
+				running++;
+			}
+			admitted.handle(null);
+			return true;
+		}
+
+		/**
+		 * Free the slot of a completed request, passing it to the first queued request if any
+		 */
+		void release() {
+			Runnable next;
+			synchronized (this) {
+				next = queue.poll();
+				if (next == null) {
+					running--;
+				}
+			}
+			if (next != null) {
+				next.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Launcher;
+
+import java.util.Arrays;
+
+/**
+ * Vert.x launcher deploying one {@link MainVerticle} instance per core by default.
+ * The number of instances can be set with the -instances command line option,
+ * or with the "instances" configuration parameter if the option is not given.
+ */
+public class AppLauncher extends Launcher {
+	private final boolean instancesOption;
+
+	/**
+	 * @param instancesOption true if the number of instances was given on the command line
+	 */
+	private AppLauncher(boolean instancesOption) {
+		this.instancesOption = instancesOption;
+	}
+
+	public static void main(String[] args) {
+		boolean instancesOption = Arrays.stream(args).anyMatch(arg -> arg.startsWith("-instances") || arg.startsWith("--instances"));
+		new AppLauncher(instancesOption).dispatch(args);
+	}
+
+	@Override
+	public void beforeDeployingVerticle(DeploymentOptions deploymentOptions) {
+		if (!instancesOption) {
+			Integer instances = deploymentOptions.getConfig() != null ? deploymentOptions.getConfig().getInteger("instances") : null;
+			deploymentOptions.setInstances(instances != null ? instances : Runtime.getRuntime().availableProcessors());
+		}
+		System.out.println("Deploying " + deploymentOptions.getInstances() + " verticle instances");
+	}
+}
@@ -0,0 +1,887 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade over {@link MongoDAO}.
+ * Every query runs on a dedicated worker pool and its result is delivered
+ * to the handler on the caller's event loop, so route handlers never block.
+ * Results of the aggregation queries are kept in a {@link ResultCache}.
+ * When the in-memory engine is enabled the aggregations are answered from an {@link AccidentsIndex},
+ * and MongoDB is queried only until the index is loaded or for fields that are not indexed.
+ * The in-memory queries reading only the bitmap indexes run directly on the event loop,
+ * the ones scanning the rows run on the worker pool.
+ * The in-memory engine can be saved to an {@link IndexSnapshot} file, to load it quickly on the next start.
+ * When the rollups are enabled the totals, daily and district counts are read from the {@link MongoRollups}
+ * once they are built, instead of aggregating the whole collection.
+ * When the {@link FieldSketches} are enabled, the top values and distinct counts of the sketched fields
+ * are approximated from them instead of aggregating the collection, unless an exact answer is requested.
+ * Imports and the builds of the in-memory engine, rollups and sketches read the whole collection,
+ * so they run on a separate maintenance pool and never hold the query threads.
+ * Every query execution is recorded in the {@link Metrics}.
+ */
+class AsyncMongoDAO {
+	static final String WORKER_POOL_NAME = "mongo-dao-worker";
+	static final String STREAM_POOL_NAME = "mongo-dao-stream";
+	static final String MAINTENANCE_POOL_NAME = "mongo-dao-maintenance";
+
+	private final Vertx vertx;
+	private final MongoDAO dao;
+	private final WorkerExecutor executor;
+	private final WorkerExecutor streamExecutor;
+	private final WorkerExecutor maintenanceExecutor;
+	private final ResultCache cache;
+	private final Metrics metrics;
+	private final MongoRollups rollups;
+	private final FieldSketches sketches;
+	private final AtomicLong dataVersion = new AtomicLong();
+	private volatile AccidentsIndex index = null;
+	private volatile JsonArray districts = null;
+	private volatile boolean rollupsReady = false;
+	private volatile boolean sketchesReady = false;
+	private final AtomicBoolean ingesting = new AtomicBoolean(false);
+	private long refreshTimer = -1;
+	private Future<JsonObject> indexCheck = null;
+
+	/**
+	 * @param poolSize       number of threads running the queries
+	 * @param streamPoolSize number of threads streaming responses, kept apart from the queries because a streaming
+	 *                       thread waits for the client whenever it is slower than the database
+	 * @param rollups        the materialized rollups, null if disabled
+	 * @param sketches       the approximate counters, null if disabled
+	 */
+	AsyncMongoDAO(Vertx vertx, MongoDAO dao, int poolSize, int streamPoolSize, ResultCache cache, Metrics metrics,
+				  MongoRollups rollups, FieldSketches sketches) {
+		this.vertx = vertx;
+		this.dao = dao;
+		this.rollups = rollups;
+		this.sketches = sketches;
+		this.cache = cache;
+		this.metrics = metrics;
+		this.executor = vertx.createSharedWorkerExecutor(WORKER_POOL_NAME, poolSize,
+				ConfigurationConstants.MAX_QUERY_EXECUTE_SECONDS, TimeUnit.SECONDS);
+		this.streamExecutor = vertx.createSharedWorkerExecutor(STREAM_POOL_NAME, streamPoolSize,
+				ConfigurationConstants.MAX_STREAM_EXECUTE_SECONDS, TimeUnit.SECONDS);
+		this.maintenanceExecutor = vertx.createSharedWorkerExecutor(MAINTENANCE_POOL_NAME, ConfigurationConstants.MAINTENANCE_POOL_SIZE,
+				ConfigurationConstants.MAX_MAINTENANCE_EXECUTE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Release the worker pool and disconnect from MongoDB
+	 */
+	void close() {
+		if (refreshTimer != -1) {
+			vertx.cancelTimer(refreshTimer);
+		}
+		this.executor.close();
+		this.streamExecutor.close();
+		this.maintenanceExecutor.close();
+		this.dao.disconnect();
+	}
+
+	/**
+	 * Load the in-memory engine and the districts, replacing the current index if any.
+	 * If the snapshot file matches the current version of the collection the index is read from it,
+	 * otherwise the whole collection is read and the snapshot file is written again.
+	 *
+	 * @param snapshot    the snapshot file, null to always read the collection without writing a snapshot
+	 * @param useSnapshot false to ignore the current snapshot file, when the data may have been changed in place
+	 * @param handler     completion handler, called back on the caller context
+	 */
+	void loadIndex(Path snapshot, boolean useSnapshot, Handler<AsyncResult<Integer>> handler) {
+		execute(maintenanceExecutor, "loadIndex", Metrics.SOURCE_MONGO, () -> {
+			JsonObject version = snapshot != null ? dao.getCollectionVersion() : null;
+			IndexSnapshot loaded = snapshot != null && useSnapshot ? readSnapshot(snapshot, version) : null;
+			if (loaded == null) {
+				AccidentsIndex built = new AccidentsIndex();
+				dao.forEachDocument(AccidentsIndex.FIELDS, built::add);
+				built.build();
+				loaded = new IndexSnapshot(built, dao.getDistricts());
+				if (snapshot != null) {
+					writeSnapshot(loaded, snapshot, version);
+				}
+			}
+			this.index = loaded.getIndex();
+			this.districts = loaded.getDistricts();
+			invalidateCache();
+			return loaded.getIndex().size();
+		}, handler);
+	}
+
+	/**
+	 * @return the snapshot, or null if it is missing, outdated or unreadable
+	 */
+	private static IndexSnapshot readSnapshot(Path snapshot, JsonObject version) {
+		try {
+			IndexSnapshot loaded = IndexSnapshot.read(snapshot, version);
+			if (loaded == null) {
+				System.out.println("The snapshot file " + snapshot + " is missing or outdated, reading the collection");
+			} else {
+				System.out.println("In-memory engine read from the snapshot file " + snapshot);
+			}
+			return loaded;
+		} catch (IOException e) {
+			System.out.println("Error reading the snapshot file " + snapshot + ", reading the collection: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a snapshot, a failure only costs a slower start next time
+	 */
+	private static void writeSnapshot(IndexSnapshot loaded, Path snapshot, JsonObject version) {
+		try {
+			loaded.write(snapshot, version);
+		} catch (IOException e) {
+			System.out.println("Error writing the snapshot file " + snapshot + ": " + e);
+		}
+	}
+
+	/**
+	 * Import a file of accidents into the collection, see {@link AccidentsImporter}.
+	 * Only one import runs at a time, on the maintenance pool.
+	 * The rollups, the in-memory engine and the cache are not updated here.
+	 *
+	 * @param file    the file to import
+	 * @param threads number of batches parsed and written in parallel
+	 * @param handler completion handler with the import report, called back on the caller context.
+	 *                Fails with IllegalStateException if another import is running
+	 */
+	void ingest(Path file, int threads, Handler<AsyncResult<JsonObject>> handler) {
+		if (!ingesting.compareAndSet(false, true)) {
+			handler.handle(Future.failedFuture(new IllegalStateException("another import is running")));
+			return;
+		}
+		execute(maintenanceExecutor, "ingest", Metrics.SOURCE_MONGO, () -> {
+			try {
+				JsonArray loaded = this.districts;
+				return new AccidentsImporter(dao, threads, new Districts(loaded != null ? loaded : dao.getDistricts())).importFile(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				ingesting.set(false);
+			}
+		}, handler);
+	}
+
+	/**
+	 * Add the accidents imported since the last refresh to the rollups, building them if they do not exist yet.
+	 * The cached results are dropped if any accident was added.
+	 * Skipped while an import is running: the accidents it writes are added by the refresh following it.
+	 *
+	 * @param handler completion handler with the number of accidents added, called back on the caller context
+	 */
+	void refreshRollups(Handler<AsyncResult<Long>> handler) {
+		if (ingesting.get() && rollups != null) {
+			handler.handle(Future.succeededFuture(0L));
+			return;
+		}
+		updateRollups("refreshRollups", rollups::refresh, handler);
+	}
+
+	/**
+	 * Refresh the enabled rollups and sketches now, and then periodically with the same timer,
+	 * so the accidents skipped by a refresh because of the safety lag are added by a following one
+	 *
+	 * @param periodMillis    time between two refreshes, 0 to refresh only now
+	 * @param rollupsHandler  completion handler of every rollups refresh
+	 * @param sketchesHandler completion handler of every sketches refresh
+	 */
+	void scheduleRefresh(long periodMillis, Handler<AsyncResult<Long>> rollupsHandler,
+						 Handler<AsyncResult<Long>> sketchesHandler) {
+		List<Handler<Void>> refreshes = new ArrayList<>();
+		if (rollups != null) {
+			refreshes.add(skipOverlapping(this::refreshRollups, rollupsHandler));
+		}
+		if (sketches != null) {
+			refreshes.add(skipOverlapping(this::refreshSketches, sketchesHandler));
+		}
+		refreshes.forEach(refresh -> refresh.handle(null));
+		if (periodMillis > 0 && !refreshes.isEmpty()) {
+			refreshTimer = vertx.setPeriodic(periodMillis, id -> refreshes.forEach(refresh -> refresh.handle(null)));
+		}
+	}
+
+	/**
+	 * @param update  an asynchronous update
+	 * @param handler completion handler of every update
+	 * @return a handler running the update, unless the previous one is still running
+	 */
+	private static Handler<Void> skipOverlapping(Handler<Handler<AsyncResult<Long>>> update, Handler<AsyncResult<Long>> handler) {
+		AtomicBoolean running = new AtomicBoolean(false);
+		return v -> {
+			if (running.compareAndSet(false, true)) {
+				update.handle(result -> {
+					running.set(false);
+					handler.handle(result);
+				});
+			}
+		};
+	}
+
+	/**
+	 * Build the rollups again from the whole collection, for example after accidents have been updated or deleted.
+	 * Until the rebuild is complete the queries aggregate the collection.
+	 *
+	 * @param handler completion handler with the number of accidents counted, called back on the caller context.
+	 *                Fails with IllegalStateException if an import is running
+	 */
+	void rebuildRollups(Handler<AsyncResult<Long>> handler) {
+		if (ingesting.get()) {
+			handler.handle(Future.failedFuture(new IllegalStateException("an import is running")));
+			return;
+		}
+		updateRollups("rebuildRollups", () -> {
+			rollupsReady = false;
+			return rollups.rebuild();
+		}, handler);
+	}
+
+	/**
+	 * Add the accidents imported since the last refresh to the sketches, building them if needed.
+	 * Skipped while an import is running, as {@link #refreshRollups(Handler)}
+	 *
+	 * @param handler completion handler with the number of accidents added, called back on the caller context
+	 */
+	void refreshSketches(Handler<AsyncResult<Long>> handler) {
+		if (ingesting.get() && sketches != null) {
+			handler.handle(Future.succeededFuture(0L));
+			return;
+		}
+		updateSketches("refreshSketches", sketches == null ? null : sketches::refresh, handler);
+	}
+
+	/**
+	 * Build the sketches again from the whole collection, after accidents have been updated or deleted.
+	 * Queries are answered exactly until the sketches are complete.
+	 *
+	 * @param handler completion handler with the number of accidents counted, called back on the caller context.
+	 *                Fails with IllegalStateException if an import is running
+	 */
+	void rebuildSketches(Handler<AsyncResult<Long>> handler) {
+		if (ingesting.get()) {
+			handler.handle(Future.failedFuture(new IllegalStateException("an import is running")));
+			return;
+		}
+		updateSketches("rebuildSketches", sketches == null ? null : () -> {
+			sketchesReady = false;
+			return sketches.rebuild();
+		}, handler);
+	}
+
+	/**
+	 * @return true if the sketches are enabled
+	 */
+	boolean hasSketches() {
+		return sketches != null;
+	}
+
+	/**
+	 * @return true if the rollups are enabled
+	 */
+	boolean hasRollups() {
+		return rollups != null;
+	}
+
+	/**
+	 * Create or verify the MongoDB indexes, and check the query plans of the frequent queries.
+	 * The check runs once, and its report is shared by all the callers.
+	 *
+	 * @param create  true to create the missing indexes
+	 * @param handler completion handler with the report of {@link MongoDAO#checkIndexes(boolean)},
+	 *                called back on the caller context
+	 */
+	void checkIndexes(boolean create, Handler<AsyncResult<JsonObject>> handler) {
+		Context caller = vertx.getOrCreateContext();
+		synchronized (this) {
+			if (indexCheck == null) {
+				Promise<JsonObject> promise = Promise.promise();
+				indexCheck = promise.future();
+				execute("checkIndexes", Metrics.SOURCE_MONGO, () -> {
+					JsonObject report = dao.checkIndexes(create);
+					if (!report.getJsonArray("created").isEmpty()) {
+						System.out.println("Created the MongoDB indexes " + report.getJsonArray("created").encode());
+					}
+					if (!report.getJsonArray("unchecked").isEmpty()) {
+						System.out.println("Warning: could not check the query plans of " + report.getJsonArray("unchecked").encode());
+					}
+					String problem = indexProblem(report);
+					if (problem != null) {
+						System.out.println("Warning: " + problem);
+					}
+					return report;
+				}, promise);
+				indexCheck.onFailure(e -> System.out.println("Warning: could not check the MongoDB indexes: " + e));
+			}
+		}
+		indexCheck.onComplete(result -> caller.runOnContext(v -> handler.handle(result)));
+	}
+
+	/**
+	 * @param report an index check report
+	 * @return a description of the missing indexes and of the queries scanning the whole collection, null if none
+	 */
+	static String indexProblem(JsonObject report) {
+		List<String> problems = new ArrayList<>();
+		if (!report.getJsonArray("missing").isEmpty()) {
+			problems.add("missing MongoDB indexes " + report.getJsonArray("missing").encode());
+		}
+		if (!report.getJsonArray("collectionScans").isEmpty()) {
+			problems.add("queries scanning the whole collection " + report.getJsonArray("collectionScans").encode());
+		}
+		return problems.isEmpty() ? null : String.join(", ", problems);
+	}
+
+	/**
+	 * @return the version of the data, incremented every time the cached results are dropped
+	 */
+	long dataVersion() {
+		return dataVersion.get();
+	}
+
+	/**
+	 * @return the result cache statistics
+	 */
+	JsonObject cacheStats() {
+		return cache.stats();
+	}
+
+	/**
+	 * Drop all the cached results, after the data has changed
+	 */
+	void invalidateCache() {
+		dataVersion.incrementAndGet();
+		cache.invalidate();
+	}
+
+	/**
+	 * Count the accidents grouped by a field.
+	 * The in-memory engine is always exact, otherwise the sketches answer with approximate counts
+	 * if the field is sketched, the limit is positive and the top values are certainly the most frequent ones.
+	 *
+	 * @param exact true to never use the sketches
+	 */
+	void getCount(String field, int limit, boolean exact, Handler<AsyncResult<JsonArray>> handler) {
+		String key = ResultCache.key("count", field == null || field.isEmpty() ? "anno" : field, limit, exact);
+		AccidentsIndex idx = this.index;
+		if (idx != null && idx.supports(field)) {
+			cachedInMemory("getCount", idx, idx.hasBitmaps(field), key, () -> idx.getCount(field, limit), handler);
+		} else if (!exact && sketchesReady && sketches.supports(field) && limit > 0) {
+			sketched("getCount", key, () -> sketches.getCount(field, limit), () -> dao.getCount(field, limit), handler);
+		} else {
+			cachedBlocking("getCount", Metrics.SOURCE_MONGO, key, () -> dao.getCount(field, limit), handler);
+		}
+	}
+
+	/**
+	 * Count the accidents, vehicles, people and streets.
+	 * Without the rollups the four counts are independent queries, run in parallel on the worker pool,
+	 * so the latency is the one of the slowest count instead of their sum,
+	 * and the streets are estimated from the sketches if they are available,
+	 * with strade_approximate set to true and the strade_relativeError of the estimate.
+	 *
+	 * @param exact true to never use the sketches
+	 */
+	void getTotals(boolean exact, Handler<AsyncResult<JsonObject>> handler) {
+		String key = ResultCache.key("totals", exact);
+		if (rollupsReady) {
+			cachedBlocking("getTotals", Metrics.SOURCE_ROLLUP, key, rollups::getTotals, handler);
+			return;
+		}
+		Object value = cache.isEnabled() ? cache.get(key) : null;
+		if (value != null) {
+			handler.handle(Future.succeededFuture((JsonObject) value));
+			return;
+		}
+		long generation = cache.generation();
+		Future<Long> accidents = Future.future(p -> execute("getTotals.incidenti", Metrics.SOURCE_MONGO, dao::countAccidents, p));
+		Future<Integer> vehicles = Future.future(p -> execute("getTotals.veicoli", Metrics.SOURCE_MONGO,
+				() -> dao.countElements("veicoli"), p));
+		Future<Integer> people = Future.future(p -> execute("getTotals.persone", Metrics.SOURCE_MONGO,
+				() -> dao.countElements("persone"), p));
+		boolean approximate = !exact && sketchesReady && sketches.supports("strada");
+		Future<Integer> streets;
+		if (approximate) {
+			streets = Future.future(p -> execute("getTotals.strade", Metrics.SOURCE_SKETCH,
+					() -> sketches.getDistinctCount("strada", null).getInteger("distinct"), p));
+		} else {
+			streets = Future.future(p -> execute("getTotals.strade", Metrics.SOURCE_MONGO, () -> dao.countDistinct("strada"), p));
+		}
+		CompositeFuture.all(accidents, vehicles, people, streets).map(v -> {
+			JsonObject totals = new JsonObject()
+					.put("incidenti", accidents.result())
+					.put("veicoli", vehicles.result())
+					.put("persone", people.result())
+					.put("strade", streets.result());
+			if (approximate) {
+				totals.put("strade_approximate", true).put("strade_relativeError", sketches.getRelativeError());
+			}
+			return cache(key, generation, totals);
+		}).onComplete(handler);
+	}
+
+	void getDistricts(Handler<AsyncResult<JsonArray>> handler) {
+		JsonArray loaded = this.districts;
+		if (loaded != null) {
+			handler.handle(Future.succeededFuture(measure("getDistricts", Metrics.SOURCE_MEMORY, 0, () -> loaded)));
+			return;
+		}
+		cachedBlocking("getDistricts", Metrics.SOURCE_MONGO, ResultCache.key("districts"), dao::getDistricts, handler);
+	}
+
+	void getAccidentDetails(String id, List<String> fields, Handler<AsyncResult<JsonObject>> handler) {
+		execute("getAccidentDetails", Metrics.SOURCE_MONGO, () -> dao.getAccidentDetails(id, fields), handler);
+	}
+
+	void getAccidentsDetails(List<String> ids, List<String> fields, Handler<AsyncResult<JsonArray>> handler) {
+		execute("getAccidentsDetails", Metrics.SOURCE_MONGO, () -> dao.getAccidentsDetails(ids, fields), handler);
+	}
+
+	/**
+	 * Read a page of geocoded accidents, always from MongoDB since the pages are ordered by _id
+	 */
+	void getAccidentsPage(String year, String district, String hour, String after, int limit,
+						  Handler<AsyncResult<JsonObject>> handler) {
+		execute("getAccidentsPage", Metrics.SOURCE_MONGO, () -> dao.getAccidentsPage(year, district, hour, after, limit), handler);
+	}
+
+	/**
+	 * Stream the geocoded accidents to a chunked response, on the stream pool:
+	 * a slow client blocks its streaming thread, never the threads running the queries.
+	 * When all the streaming threads are busy the stream waits for a free one.
+	 *
+	 * @param maxRows maximum number of accidents to write, 0 for no limit
+	 * @param writer  the response writer, ended when all the accidents have been written,
+	 *                and marked as truncated if more than maxRows accidents match
+	 * @param handler completion handler with the number of accidents written, called back on the caller context
+	 */
+	void streamAllAccidents(String year, String district, String hour, long maxRows, ChunkedResponseWriter writer,
+							Handler<AsyncResult<Long>> handler) {
+		AccidentsIndex idx = this.index;
+		execute(streamExecutor, "getAllAccidents", idx != null ? Metrics.SOURCE_MEMORY : Metrics.SOURCE_MONGO, () -> {
+			long[] written = {0};
+			boolean[] truncated = {false};
+			Predicate<JsonObject> consumer = item -> {
+				if (maxRows > 0 && written[0] >= maxRows) {
+					truncated[0] = true;    // one more accident than the limit: the response is not complete
+					return false;
+				}
+				written[0]++;
+				return writer.write(item);
+			};
+			if (idx != null) {
+				idx.forEachAccident(year, district, hour, consumer);
+			} else {
+				dao.forEachAccident(year, district, hour, consumer);
+			}
+			writer.end(truncated[0]);
+			return written[0];
+		}, handler);
+	}
+
+	/**
+	 * Count the accidents matching a filter, grouped by each one of the fields, with a single scan
+	 *
+	 * @param filter values of the filter fields, null or empty values are ignored
+	 * @param fields the fields to group by
+	 * @param limit  maximum number of values per field, ignored if not positive
+	 * @param exact  true to never use the sketches, which only answer queries with at most one filter
+	 */
+	void getFacets(Map<String, Object> filter, List<String> fields, int limit, boolean exact,
+				   Handler<AsyncResult<JsonObject>> handler) {
+		String key = facetsKey(filter, fields, limit, exact);
+		AccidentsIndex idx = this.index;
+		if (idx != null && fields.stream().allMatch(idx::supports)) {
+			boolean bitmapsOnly = AccidentsIndex.isEmpty(filter) && fields.stream().allMatch(idx::hasBitmaps);
+			cachedInMemory("getFacets", idx, bitmapsOnly, key, () -> idx.getFacets(filter, fields, limit), handler);
+		} else if (!exact && sketchesReady && fields.stream().allMatch(sketches::supports) && FieldSketches.isSingleFilter(filter)
+				&& limit > 0) {
+			sketched("getFacets", key, () -> sketches.getFacets(filter, fields, limit), () -> dao.getFacets(filter, fields, limit),
+					handler);
+		} else {
+			cachedBlocking("getFacets", Metrics.SOURCE_MONGO, key, () -> dao.getFacets(filter, fields, limit), handler);
+		}
+	}
+
+	/**
+	 * @return the cache key of a facets query
+	 */
+	static String facetsKey(Map<String, Object> filter, List<String> fields, int limit, boolean exact) {
+		List<Object> params = new ArrayList<>(filter.values());
+		params.add(String.join(",", fields));
+		params.add(limit);
+		params.add(exact);
+		return ResultCache.key("facets", params.toArray());
+	}
+
+	/**
+	 * Count the distinct values of a field in the accidents matching a filter.
+	 * The in-memory engine is always exact, otherwise the sketches answer with an estimate
+	 * if the field is sketched and there is at most one filter.
+	 *
+	 * @param filter values of the filter fields, null or empty values are ignored
+	 * @param exact  true to never use the sketches
+	 */
+	void getDistinctCount(String field, Map<String, Object> filter, boolean exact, Handler<AsyncResult<JsonObject>> handler) {
+		String key = distinctCountKey(field, filter, exact);
+		AccidentsIndex idx = this.index;
+		if (idx != null && idx.supports(field)) {
+			cachedInMemory("getDistinctCount", idx, AccidentsIndex.isEmpty(filter), key,
+					() -> new JsonObject().put("field", field).put("distinct", idx.countDistinct(field, filter)), handler);
+		} else if (!exact && sketchesReady && sketches.supports(field) && FieldSketches.isSingleFilter(filter)) {
+			cachedBlocking("getDistinctCount", Metrics.SOURCE_SKETCH, key, () -> sketches.getDistinctCount(field, filter), handler);
+		} else {
+			cachedBlocking("getDistinctCount", Metrics.SOURCE_MONGO, key,
+					() -> new JsonObject().put("field", field).put("distinct", dao.countDistinct(field, filter)), handler);
+		}
+	}
+
+	/**
+	 * @return the cache key of a distinct count query
+	 */
+	static String distinctCountKey(String field, Map<String, Object> filter, boolean exact) {
+		List<Object> params = new ArrayList<>(filter.values());
+		params.add(field);
+		params.add(exact);
+		return ResultCache.key("distinctCount", params.toArray());
+	}
+
+	void getDistrictsAccidents(String anno, String mese, String giorno, String ora, Handler<AsyncResult<JsonArray>> handler) {
+		String key = ResultCache.key("districtsAccidents", anno, mese, giorno, ora);
+		AccidentsIndex idx = this.index;
+		if (idx != null) {
+			cached("getDistrictsAccidents", idx, key, () -> idx.getDistrictsAccidents(anno, mese, giorno, ora), handler);
+		} else if (rollupsReady) {
+			cachedBlocking("getDistrictsAccidents", Metrics.SOURCE_ROLLUP, key,
+					() -> rollups.getDistrictsAccidents(anno, mese, giorno, ora), handler);
+		} else {
+			cachedBlocking("getDistrictsAccidents", Metrics.SOURCE_MONGO, key,
+					() -> dao.getDistrictsAccidents(anno, mese, giorno, ora), handler);
+		}
+	}
+
+	void getAccidentsByDay(Handler<AsyncResult<JsonArray>> handler) {
+		AccidentsIndex idx = this.index;
+		if (idx != null) {
+			cachedBlocking("getAccidentsByDay", Metrics.SOURCE_MEMORY, ResultCache.key("accidentsByDay"), idx::getAccidentsByDay, handler);
+		} else if (rollupsReady) {
+			cachedBlocking("getAccidentsByDay", Metrics.SOURCE_ROLLUP, ResultCache.key("accidentsByDay"),
+					rollups::getAccidentsByDay, handler);
+		} else {
+			cachedBlocking("getAccidentsByDay", Metrics.SOURCE_MONGO, ResultCache.key("accidentsByDay"),
+					dao::getAccidentsByDay, handler);
+		}
+	}
+
+	void getAggregateCount(String field, int limit, String highlightField, String highlightValue, boolean sortDescending,
+						   Handler<AsyncResult<JsonArray>> handler) {
+		String key = ResultCache.key("aggregateCount", field == null || field.isEmpty() ? "anno" : field, limit,
+				highlightField, highlightValue, sortDescending);
+		AccidentsIndex idx = this.index;
+		if (idx != null && idx.supports(field) && idx.supports(highlightField)) {
+			boolean bitmapsOnly = idx.hasBitmaps(field) && (highlightField == null || highlightValue == null || idx.hasBitmaps(highlightField));
+			cachedInMemory("getAggregateCount", idx, bitmapsOnly, key,
+					() -> idx.getAggregateCount(field, limit, highlightField, highlightValue, sortDescending), handler);
+		} else {
+			cachedBlocking("getAggregateCount", Metrics.SOURCE_MONGO, key,
+					() -> dao.getAggregateCount(field, limit, highlightField, highlightValue, sortDescending), handler);
+		}
+	}
+
+	/**
+	 * @return true if the in-memory engine is loaded
+	 */
+	boolean isIndexLoaded() {
+		return index != null;
+	}
+
+	/**
+	 * Aggregate the accidents of a map tile, only available from the in-memory engine.
+	 * Run on the worker pool, as a tile at a low zoom reads most of the geocoded accidents
+	 */
+	void getTile(int z, int x, int y, int resolution, String year, String district, String hour,
+				 Handler<AsyncResult<JsonObject>> handler) {
+		AccidentsIndex idx = this.index;
+		if (idx == null) {
+			handler.handle(Future.failedFuture(new IllegalStateException("the in-memory engine is not loaded")));
+			return;
+		}
+		String key = ResultCache.key("tile", z, x, y, resolution, year, district, hour);
+		cachedBlocking("getTile", Metrics.SOURCE_MEMORY, key, () -> idx.getTile(z, x, y, resolution, year, district, hour), handler);
+	}
+
+	/**
+	 * Read the geocoded accidents inside a bounding box, only available from the in-memory engine.
+	 * Run on the worker pool, as the number of accidents read depends on the parameters
+	 */
+	void getAccidentsInBox(double south, double west, double north, double east, String year, String district, String hour,
+						   int limit, Handler<AsyncResult<JsonObject>> handler) {
+		AccidentsIndex idx = this.index;
+		if (idx == null) {
+			handler.handle(Future.failedFuture(new IllegalStateException("the in-memory engine is not loaded")));
+			return;
+		}
+		String key = ResultCache.key("accidentsInBox", south, west, north, east, year, district, hour, limit);
+		cachedBlocking("getAccidentsInBox", Metrics.SOURCE_MEMORY, key,
+				() -> idx.getAccidentsInBox(south, west, north, east, year, district, hour, limit), handler);
+	}
+
+	/**
+	 * Count the geocoded accidents inside a polygon, only available from the in-memory engine.
+	 * Run on the worker pool, as the number of accidents read depends on the parameters
+	 */
+	void getPolygonAccidents(Polygon polygon, String field, int limit, String year, String district, String hour,
+							 Handler<AsyncResult<JsonObject>> handler) {
+		AccidentsIndex idx = this.index;
+		if (idx == null) {
+			handler.handle(Future.failedFuture(new IllegalStateException("the in-memory engine is not loaded")));
+			return;
+		}
+		String key = ResultCache.key("polygonAccidents", polygon, field, limit, year, district, hour);
+		cachedBlocking("getPolygonAccidents", Metrics.SOURCE_MEMORY, key,
+				() -> idx.getPolygonAccidents(polygon, field, limit, year, district, hour), handler);
+	}
+
+	/**
+	 * Serve a query from the cache, or answer it from the sketches on the worker pool and cache the result.
+	 * If the sketches cannot answer with certainty, run the exact query instead
+	 *
+	 * @param method      the query name, for the metrics
+	 * @param key         the cache key of the query
+	 * @param approximate the sketches query, returning null if it cannot answer
+	 * @param exact       the blocking exact query
+	 * @param handler     result handler, called back on the caller context
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void sketched(String method, String key, Supplier<T> approximate, Supplier<T> exact,
+							  Handler<AsyncResult<T>> handler) {
+		Object value = cache.isEnabled() ? cache.get(key) : null;
+		if (value != null) {
+			handler.handle(Future.succeededFuture((T) value));
+			return;
+		}
+		long generation = cache.generation();
+		execute(method, Metrics.SOURCE_SKETCH, () -> {
+			T result = approximate.get();
+			return result != null ? cache(key, generation, result) : null;
+		}, result -> {
+			if (result.succeeded() && result.result() == null) {
+				cachedBlocking(method, Metrics.SOURCE_MONGO, key, exact, handler);
+			} else {
+				handler.handle(result);
+			}
+		});
+	}
+
+	/**
+	 * Serve a query from the cache, or run it on the worker pool and cache its result
+	 *
+	 * @param method  the query name, for the metrics
+	 * @param source  where the query reads from, for the metrics
+	 * @param key     the cache key of the query
+	 * @param query   the blocking query
+	 * @param handler result handler, called back on the caller context
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void cachedBlocking(String method, String source, String key, Supplier<T> query, Handler<AsyncResult<T>> handler) {
+		if (!cache.isEnabled()) {
+			execute(method, source, query, handler);
+			return;
+		}
+		Object value = cache.get(key);
+		if (value != null) {
+			handler.handle(Future.succeededFuture((T) value));
+			return;
+		}
+		long generation = cache.generation();
+		execute(method, source, () -> cache(key, generation, query.get()), handler);
+	}
+
+	/**
+	 * Serve an in-memory query from the cache, or run it and cache its result:
+	 * on the event loop if it only reads the bitmap indexes, on the worker pool if it scans the rows
+	 *
+	 * @param method      the query name, for the metrics
+	 * @param idx         the index answering the query
+	 * @param bitmapsOnly true if the query time does not depend on the number of accidents
+	 * @param key         the cache key of the query
+	 * @param query       the in-memory query
+	 * @param handler     result handler, called back on the caller context
+	 */
+	private <T> void cachedInMemory(String method, AccidentsIndex idx, boolean bitmapsOnly, String key, Supplier<T> query,
+									Handler<AsyncResult<T>> handler) {
+		if (bitmapsOnly) {
+			cached(method, idx, key, query, handler);
+		} else {
+			cachedBlocking(method, Metrics.SOURCE_MEMORY, key, query, handler);
+		}
+	}
+
+	/**
+	 * Serve a query from the cache, or run it on the current thread and cache its result.
+	 * Only for in-memory queries reading the bitmap indexes, which are fast enough to run on the event loop.
+	 *
+	 * @param method  the query name, for the metrics
+	 * @param idx     the index answering the query
+	 * @param key     the cache key of the query
+	 * @param query   the in-memory query
+	 * @param handler result handler
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void cached(String method, AccidentsIndex idx, String key, Supplier<T> query, Handler<AsyncResult<T>> handler) {
+		Object value = cache.isEnabled() ? cache.get(key) : null;
+		if (value != null) {
+			handler.handle(Future.succeededFuture((T) value));
+			return;
+		}
+		long generation = cache.generation();
+		Future<T> result;
+		try {
+			result = Future.succeededFuture(cache(key, generation, measure(method, Metrics.SOURCE_MEMORY, idx.size(), query)));
+		} catch (RuntimeException e) {
+			result = Future.failedFuture(e);
+		}
+		handler.handle(result);
+	}
+
+	/**
+	 * Run a rollups update on the maintenance pool, then switch the queries to the rollups
+	 *
+	 * @param method  the update name, for the metrics
+	 * @param update  the blocking update, returning the number of accidents read
+	 * @param handler completion handler, called back on the caller context
+	 */
+	private void updateRollups(String method, Supplier<Long> update, Handler<AsyncResult<Long>> handler) {
+		if (rollups == null) {
+			handler.handle(Future.failedFuture(new IllegalStateException("the rollups are not enabled")));
+			return;
+		}
+		execute(maintenanceExecutor, method, Metrics.SOURCE_ROLLUP, () -> {
+			long added = update.get();
+			if (added > 0 || !rollupsReady) {
+				invalidateCache();
+			}
+			rollupsReady = true;
+			return added;
+		}, handler);
+	}
+
+	/**
+	 * Run a sketches update on the maintenance pool, then switch the approximate queries to the sketches
+	 *
+	 * @param method  the update name, for the metrics
+	 * @param update  the blocking update, returning the number of accidents read, null if the sketches are disabled
+	 * @param handler completion handler, called back on the caller context
+	 */
+	private void updateSketches(String method, Supplier<Long> update, Handler<AsyncResult<Long>> handler) {
+		if (update == null) {
+			handler.handle(Future.failedFuture(new IllegalStateException("the sketches are not enabled")));
+			return;
+		}
+		execute(maintenanceExecutor, method, Metrics.SOURCE_SKETCH, () -> {
+			long added = update.get();
+			if (added > 0 || !sketchesReady) {
+				invalidateCache();
+			}
+			sketchesReady = true;
+			return added;
+		}, handler);
+	}
+
+	/**
+	 * Store a query result in the cache, unless the cache was invalidated while the query was running
+	 *
+	 * @param key        the cache key of the query
+	 * @param generation the cache generation read before the query started
+	 * @param result     the query result
+	 * @return the query result
+	 */
+	private <T> T cache(String key, long generation, T result) {
+		if (cache.isEnabled()) {
+			cache.put(key, result, ResultCache.estimateSize(result), generation);
+		}
+		return result;
+	}
+
+	/**
+	 * Run a blocking query on the worker pool.
+	 * Queries are not ordered, so concurrent requests from the same event loop run in parallel.
+	 *
+	 * @param method  the query name, for the metrics
+	 * @param source  where the query reads from, for the metrics
+	 * @param query   the blocking query
+	 * @param handler result handler, called back on the caller context
+	 */
+	private <T> void execute(String method, String source, Supplier<T> query, Handler<AsyncResult<T>> handler) {
+		execute(executor, method, source, query, handler);
+	}
+
+	/**
+	 * Run a blocking query on a worker pool
+	 *
+	 * @param pool the worker pool
+	 */
+	private <T> void execute(WorkerExecutor pool, String method, String source, Supplier<T> query,
+							 Handler<AsyncResult<T>> handler) {
+		pool.<T>executeBlocking(promise -> promise.complete(measure(method, source, 0, query)), false, handler);
+	}
+
+	/**
+	 * Run a query and record its execution time and result size
+	 *
+	 * @param method  the query name
+	 * @param source  where the query reads from
+	 * @param scanned number of rows read by the query, 0 if unknown
+	 * @param query   the query
+	 * @return the query result
+	 */
+	private <T> T measure(String method, String source, long scanned, Supplier<T> query) {
+		long start = System.nanoTime();
+		try {
+			T result = query.get();
+			metrics.recordQuery(method, source, (System.nanoTime() - start) / 1000, rows(result), scanned, false);
+			return result;
+		} catch (RuntimeException e) {
+			metrics.recordQuery(method, source, (System.nanoTime() - start) / 1000, 0, scanned, true);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param result a query result
+	 * @return the number of rows in the result
+	 */
+	private static long rows(Object result) {
+		if (result instanceof JsonArray) {
+			return ((JsonArray) result).size();
+		}
+		if (result instanceof JsonObject && ((JsonObject) result).getValue("items") instanceof JsonArray) {
+			return ((JsonObject) result).getJsonArray("items").size();    // a page of results
+		}
+		if (result instanceof Number) {
+			return ((Number) result).longValue();
+		}
+		return result == null ? 0 : 1;
+	}
+}
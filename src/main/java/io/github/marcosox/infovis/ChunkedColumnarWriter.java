@@ -0,0 +1,83 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the geocoded accidents to a chunked http response in a binary columnar format.
+ * The response is a sequence of blocks of up to {@link #BLOCK_SIZE} accidents, all values big endian:
+ * <ul>
+ * <li>int32: number of accidents n in the block, 0 marks the end of the response,
+ * {@link #TRUNCATED} the end of a response truncated at the maximum number of accidents</li>
+ * <li>n float32: latitudes</li>
+ * <li>n float32: longitudes</li>
+ * <li>n ids, each one as an uint16 byte length followed by the UTF-8 bytes</li>
+ * </ul>
+ * Accidents without valid coordinates are skipped.
+ */
+class ChunkedColumnarWriter extends ChunkedResponseWriter {
+	static final String CONTENT_TYPE = "application/octet-stream";
+	static final int BLOCK_SIZE = 4096;
+	/**
+	 * Block length ending a truncated response
+	 */
+	static final int TRUNCATED = -1;
+
+	private final float[] lat = new float[BLOCK_SIZE];
+	private final float[] lon = new float[BLOCK_SIZE];
+	private final byte[][] ids = new byte[BLOCK_SIZE][];
+	private int count = 0;
+
+	ChunkedColumnarWriter(Context context, HttpServerResponse response, Handler<Void> onClose) {
+		super(context, response, CONTENT_TYPE, onClose);
+	}
+
+	@Override
+	boolean write(JsonObject item) {
+		double latitude = AccidentsIndex.parseCoordinate(item.getValue("lat"));
+		double longitude = AccidentsIndex.parseCoordinate(item.getValue("lon"));
+		if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+			String id = item.getString("protocollo");
+			lat[count] = (float) latitude;
+			lon[count] = (float) longitude;
+			ids[count] = id == null ? new byte[0] : id.getBytes(StandardCharsets.UTF_8);
+			count++;
+			if (count == BLOCK_SIZE) {
+				writeBlock();
+				flushIfFull();
+			}
+		}
+		return !isClosed();
+	}
+
+	@Override
+	void end(boolean truncated) {
+		if (count > 0) {
+			writeBlock();
+		}
+		chunk.appendInt(truncated ? TRUNCATED : 0);
+		flush(true);
+	}
+
+	/**
+	 * Append the buffered accidents to the current chunk
+	 */
+	private void writeBlock() {
+		chunk.appendInt(count);
+		for (int i = 0; i < count; i++) {
+			chunk.appendFloat(lat[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			chunk.appendFloat(lon[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			chunk.appendUnsignedShort(ids[i].length).appendBytes(ids[i]);
+			ids[i] = null;
+		}
+		count = 0;
+	}
+}
@@ -0,0 +1,39 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Streams a compact JSON array to a chunked http response.
+ * A truncated response ends with the {@link #TRUNCATED} marker as its last element.
+ */
+class ChunkedJsonArrayWriter extends ChunkedResponseWriter {
+	static final JsonObject TRUNCATED = new JsonObject().put("truncated", true);
+
+	private boolean empty = true;
+
+	ChunkedJsonArrayWriter(Context context, HttpServerResponse response, Handler<Void> onClose) {
+		super(context, response, "application/json", onClose);
+	}
+
+	@Override
+	boolean write(JsonObject item) {
+		chunk.appendString(empty ? "[" : ",");
+		chunk.appendBuffer(item.toBuffer());
+		empty = false;
+		flushIfFull();
+		return !isClosed();
+	}
+
+	@Override
+	void end(boolean truncated) {
+		if (truncated) {
+			chunk.appendString(empty ? "[" : ",").appendBuffer(TRUNCATED.toBuffer());
+			empty = false;
+		}
+		chunk.appendString(empty ? "[]" : "]");
+		flush(true);
+	}
+}
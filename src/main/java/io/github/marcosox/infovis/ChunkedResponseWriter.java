@@ -0,0 +1,139 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a sequence of items to a chunked http response.
+ * Items are appended from a worker thread and flushed in fixed size chunks on the response context.
+ * The worker is suspended while too many chunks are waiting in the response write queue,
+ * so memory usage does not depend on the number of items written.
+ * Since a slow client keeps its worker waiting, the writers run on a dedicated pool, see
+ * {@link AsyncMongoDAO#streamAllAccidents}.
+ */
+abstract class ChunkedResponseWriter {
+	static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_PENDING_CHUNKS = 4;
+
+	private final Context context;
+	private final HttpServerResponse response;
+	private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+	private volatile boolean closed = false;
+	/**
+	 * The chunk being filled, only accessed from the producer thread
+	 */
+	protected Buffer chunk = Buffer.buffer(CHUNK_SIZE);
+	// chunks waiting for the response to drain, only accessed from the response context
+	private int blockedChunks = 0;
+
+	/**
+	 * Must be created on the response context
+	 *
+	 * @param context     the response context
+	 * @param response    the http response to write to
+	 * @param contentType the response content type
+	 * @param onClose     handler to call when the response is closed before being ended, as the response
+	 *                    has a single close handler and this writer replaces it. May be null
+	 */
+	ChunkedResponseWriter(Context context, HttpServerResponse response, String contentType, Handler<Void> onClose) {
+		this.context = context;
+		this.response = response;
+		response.setChunked(true).putHeader("content-type", contentType);
+		response.closeHandler(v -> {
+			closed = true;
+			pendingChunks.release(MAX_PENDING_CHUNKS);
+			if (onClose != null) {
+				onClose.handle(null);
+			}
+		});
+	}
+
+	/**
+	 * Append an item, blocking if the client is not keeping up
+	 *
+	 * @param item the item to append
+	 * @return false if the client went away and the caller should stop producing items
+	 */
+	abstract boolean write(JsonObject item);
+
+	/**
+	 * Write the trailing data and end the response
+	 *
+	 * @param truncated true if more items were available but the maximum number of items was reached,
+	 *                  to let the client tell a truncated response from a complete one
+	 */
+	abstract void end(boolean truncated);
+
+	/**
+	 * @return true if the client went away
+	 */
+	protected boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Send the current chunk to the response context if it is full
+	 */
+	protected void flushIfFull() {
+		if (chunk.length() >= CHUNK_SIZE) {
+			flush(false);
+		}
+	}
+
+	/**
+	 * Send the current chunk to the response context
+	 *
+	 * @param last true to end the response with this chunk
+	 */
+	protected void flush(boolean last) {
+		if (!acquire()) {
+			return;
+		}
+		Buffer data = chunk;
+		chunk = Buffer.buffer(CHUNK_SIZE);
+		context.runOnContext(v -> {
+			if (closed) {
+				return;
+			}
+			if (last) {
+				response.end(data);
+				pendingChunks.release();
+				return;
+			}
+			response.write(data);
+			if (response.writeQueueFull()) {
+				blockedChunks++;
+				response.drainHandler(d -> {
+					pendingChunks.release(blockedChunks);
+					blockedChunks = 0;
+				});
+			} else {
+				pendingChunks.release();
+			}
+		});
+	}
+
+	/**
+	 * Wait for room in the response write queue
+	 *
+	 * @return false if the client went away
+	 */
+	private boolean acquire() {
+		try {
+			while (!closed) {
+				if (pendingChunks.tryAcquire(1, TimeUnit.SECONDS)) {
+					return !closed;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+}
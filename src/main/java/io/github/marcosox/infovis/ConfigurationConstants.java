@@ -31,4 +31,142 @@ class ConfigurationConstants {
 	 * Default results count limit
 	 */
 	static final int DEFAULT_RESULT_LIMIT = 500;
+
+	/**
+	 * Default size of the worker pool running the database queries
+	 */
+	static final int DEFAULT_WORKER_POOL_SIZE = 20;
+	/**
+	 * Default size of the worker pool streaming /GetGeocodedAccidents, the maximum number of concurrent downloads
+	 */
+	static final int DEFAULT_STREAM_POOL_SIZE = 8;
+	/**
+	 * Size of the worker pool running the imports and the builds of the in-memory engine, rollups and sketches
+	 */
+	static final int MAINTENANCE_POOL_SIZE = 4;
+	/**
+	 * Maximum execution time of a query, after which Vert.x logs the worker thread as blocked, in seconds.
+	 * Covers the default connection wait and query time limit
+	 */
+	static final long MAX_QUERY_EXECUTE_SECONDS = 300;
+	/**
+	 * Maximum execution time of a streamed download, which lasts as long as the client needs to read it, in seconds
+	 */
+	static final long MAX_STREAM_EXECUTE_SECONDS = 3600;
+	/**
+	 * Maximum execution time of an import or a build reading the whole collection, in seconds
+	 */
+	static final long MAX_MAINTENANCE_EXECUTE_SECONDS = 6 * 3600;
+
+	/**
+	 * Default time to live of the cached query results, 0 disables the cache
+	 */
+	static final long DEFAULT_CACHE_TTL_SECONDS = 3600;
+	/**
+	 * Default maximum number of cached query results
+	 */
+	static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+	/**
+	 * Default maximum size of the cached query results, in bytes
+	 */
+	static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Default number of cluster cells per map tile side, as a power of 2
+	 */
+	static final int DEFAULT_TILE_RESOLUTION = 3;
+
+	/**
+	 * Default gzip/deflate compression level of the responses
+	 */
+	static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	/**
+	 * Default maximum number of MongoDB connections, shared by all the verticle instances
+	 */
+	static final int DEFAULT_DB_MAX_POOL_SIZE = 100;
+	/**
+	 * Default minimum number of MongoDB connections
+	 */
+	static final int DEFAULT_DB_MIN_POOL_SIZE = 0;
+	/**
+	 * Default number of threads allowed to wait for a MongoDB connection, as a multiple of the pool size
+	 */
+	static final int DEFAULT_DB_WAIT_QUEUE_MULTIPLE = 5;
+	/**
+	 * Default maximum time to wait for a MongoDB connection, in milliseconds
+	 */
+	static final int DEFAULT_DB_MAX_WAIT_TIME_MS = 120000;
+	/**
+	 * Default MongoDB connection timeout, in milliseconds
+	 */
+	static final int DEFAULT_DB_CONNECT_TIMEOUT_MS = 10000;
+	/**
+	 * Default MongoDB socket timeout, in milliseconds, 0 means no timeout
+	 */
+	static final int DEFAULT_DB_SOCKET_TIMEOUT_MS = 0;
+
+	/**
+	 * Default time between two refreshes of the rollups, in seconds
+	 */
+	static final long DEFAULT_ROLLUP_REFRESH_SECONDS = 60;
+	/**
+	 * Default age of the most recent accident counted by a rollups refresh, in seconds, 0 counts all the accidents
+	 */
+	static final long DEFAULT_ROLLUP_SAFETY_LAG_SECONDS = 60;
+	/**
+	 * Default precision of the distinct counters of the sketches, the relative error is 1.04 / sqrt(2^precision)
+	 */
+	static final int DEFAULT_SKETCH_PRECISION = 12;
+	/**
+	 * Default number of counters of the top values sketches, the maximum limit they can answer
+	 */
+	static final int DEFAULT_SKETCH_CAPACITY = 1000;
+
+	/**
+	 * Default number of accidents per page of /GetGeocodedAccidentsPage
+	 */
+	static final int DEFAULT_PAGE_SIZE = 1000;
+	/**
+	 * Maximum number of accidents per page of /GetGeocodedAccidentsPage
+	 */
+	static final int MAX_PAGE_SIZE = 10000;
+	/**
+	 * Maximum number of ids in a /GetAccidentsDetails request
+	 */
+	static final int MAX_DETAILS_IDS = 1000;
+	/**
+	 * Maximum number of fields in a /GetFacets request
+	 */
+	static final int MAX_FACETS = 20;
+
+	/**
+	 * Default behaviour when a frequent query would scan the whole collection: off, warn or fail
+	 */
+	static final String DEFAULT_INDEX_CHECK = "warn";
+
+	/**
+	 * Default maximum number of requests of an endpoint running at the same time, 0 for no limit
+	 */
+	static final int DEFAULT_MAX_CONCURRENT = 64;
+	/**
+	 * Default maximum number of requests of an endpoint waiting to run, further requests are rejected with 503
+	 */
+	static final int DEFAULT_MAX_QUEUE = 256;
+	/**
+	 * Default value of the Retry-After header of the rejected requests, in seconds
+	 */
+	static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+	/**
+	 * Default maximum execution time of the MongoDB queries answering a request, in milliseconds, 0 means no limit
+	 */
+	static final long DEFAULT_DB_MAX_TIME_MS = 30000;
+	/**
+	 * Default maximum number of rows returned by /GetCount and /GetCountWithHighlight
+	 */
+	static final int DEFAULT_MAX_RESULT_ROWS = 10000;
+	/**
+	 * Default maximum number of accidents streamed by /GetGeocodedAccidents, 0 means no limit
+	 */
+	static final long DEFAULT_MAX_STREAMED_ROWS = 0;
 }
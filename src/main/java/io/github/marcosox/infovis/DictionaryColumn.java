@@ -0,0 +1,197 @@
+package io.github.marcosox.infovis;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoded column: every row stores the int code of its value,
+ * and every distinct value is stored only once in the dictionary.
+ * Missing values are stored as null.
+ * Low cardinality columns can also keep a compressed bitmap of the rows having each value.
+ */
+class DictionaryColumn {
+	private final String name;
+	private final List<Object> dictionary = new ArrayList<>();
+	private volatile Map<Object, Integer> codes = new HashMap<>();    // built lazily for the columns read from a snapshot
+	private int[] rows = new int[1024];
+	private int size = 0;
+	private RoaringBitmap[] bitmaps = null;
+
+	DictionaryColumn(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Read a column written by {@link #write(DataOutputStream)}
+	 *
+	 * @param in the snapshot buffer, positioned at the start of the column
+	 * @return the column
+	 * @throws IOException if the buffer does not contain a valid column
+	 */
+	static DictionaryColumn read(ByteBuffer in) throws IOException {
+		DictionaryColumn column = new DictionaryColumn(IndexSnapshot.readString(in));
+		int cardinality = in.getInt();
+		for (int code = 0; code < cardinality; code++) {
+			column.dictionary.add(IndexSnapshot.readValue(in));
+		}
+		column.codes = null;
+		column.rows = IndexSnapshot.readInts(in);
+		column.size = column.rows.length;
+		if (in.get() != 0) {
+			column.bitmaps = new RoaringBitmap[cardinality];
+			for (int code = 0; code < cardinality; code++) {
+				column.bitmaps[code] = IndexSnapshot.readBitmap(in);
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Write the column to a snapshot, only after {@link #trim()}
+	 *
+	 * @param out the snapshot stream
+	 * @throws IOException if the column cannot be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		IndexSnapshot.writeString(out, name);
+		out.writeInt(dictionary.size());
+		for (Object value : dictionary) {
+			IndexSnapshot.writeValue(out, value);
+		}
+		IndexSnapshot.writeInts(out, rows, size);
+		out.writeByte(bitmaps != null ? 1 : 0);
+		if (bitmaps != null) {
+			for (RoaringBitmap bitmap : bitmaps) {
+				IndexSnapshot.writeBitmap(out, bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Append a row
+	 *
+	 * @param value the row value, may be null
+	 */
+	void add(Object value) {
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = dictionary.size();
+			dictionary.add(value);
+			codes.put(value, code);
+		}
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+		}
+		rows[size++] = code;
+	}
+
+	/**
+	 * Release the unused capacity once all the rows have been added
+	 */
+	void trim() {
+		rows = Arrays.copyOf(rows, size);
+	}
+
+	/**
+	 * Build a bitmap of the rows for each value
+	 */
+	void buildBitmaps() {
+		RoaringBitmap[] built = new RoaringBitmap[dictionary.size()];
+		for (int code = 0; code < built.length; code++) {
+			built[code] = new RoaringBitmap();
+		}
+		for (int row = 0; row < size; row++) {
+			built[rows[row]].add(row);
+		}
+		for (RoaringBitmap bitmap : built) {
+			bitmap.runOptimize();
+		}
+		this.bitmaps = built;
+	}
+
+	/**
+	 * @return true if the column has a bitmap for each value
+	 */
+	boolean hasBitmaps() {
+		return bitmaps != null;
+	}
+
+	/**
+	 * The returned bitmap is shared, and must not be modified.
+	 *
+	 * @param code value code
+	 * @return the rows having the value with the given code
+	 */
+	RoaringBitmap rows(int code) {
+		if (bitmaps != null) {
+			return bitmaps[code];
+		}
+		RoaringBitmap matching = new RoaringBitmap();
+		for (int row = 0; row < size; row++) {
+			if (rows[row] == code) {
+				matching.add(row);
+			}
+		}
+		return matching;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of rows
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of distinct values
+	 */
+	int cardinality() {
+		return dictionary.size();
+	}
+
+	/**
+	 * @param row row number
+	 * @return the code of the row value
+	 */
+	int code(int row) {
+		return rows[row];
+	}
+
+	/**
+	 * @param code value code
+	 * @return the value with the given code
+	 */
+	Object value(int code) {
+		return dictionary.get(code);
+	}
+
+	/**
+	 * @param value a column value
+	 * @return the value code, or -1 if no row has this value
+	 */
+	int codeOf(Object value) {
+		Map<Object, Integer> lookup = codes;
+		if (lookup == null) {
+			// concurrent first lookups may both build the map, they build the same one
+			lookup = new HashMap<>(dictionary.size() * 2);
+			for (int code = 0; code < dictionary.size(); code++) {
+				lookup.put(dictionary.get(code), code);
+			}
+			codes = lookup;
+		}
+		Integer code = lookup.get(value);
+		return code == null ? -1 : code;
+	}
+}
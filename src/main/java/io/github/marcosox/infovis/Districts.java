@@ -0,0 +1,164 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * District boundaries, read from the districts collection, to assign the district of a point.
+ * Each district is a GeoJSON Feature, or a document with a GeoJSON {@code geometry}, of type Polygon or MultiPolygon,
+ * with the district number in one of the fields {@link #NUMBER_FIELDS}, in the document or in its {@code properties}.
+ * A FeatureCollection imported as a single document is also read.
+ * Districts without a geometry or a number are ignored, so when the collection has no geometry no point is assigned.
+ */
+class Districts {
+	/**
+	 * Fields with the district number, the first one found is used
+	 */
+	static final List<String> NUMBER_FIELDS = Arrays.asList("numero_gruppo", "gruppo", "municipio", "numero");
+
+	private final List<Area> areas = new ArrayList<>();
+
+	/**
+	 * @param districts the documents of the districts collection, as returned by {@link MongoDAO#getDistricts()}
+	 */
+	Districts(JsonArray districts) {
+		for (Object district : districts) {
+			if (district instanceof JsonObject) {
+				try {
+					add((JsonObject) district);
+				} catch (RuntimeException e) {
+					System.out.println("Ignoring the district with an invalid geometry " + ((JsonObject) district).getValue("_id")
+							+ ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of district areas with a geometry
+	 */
+	int size() {
+		return areas.size();
+	}
+
+	/**
+	 * @param lat latitude of the point
+	 * @param lon longitude of the point
+	 * @return the number of the district containing the point, null if none
+	 */
+	Integer locate(double lat, double lon) {
+		for (Area area : areas) {
+			if (area.contains(lat, lon)) {
+				return area.number;
+			}
+		}
+		return null;
+	}
+
+	private void add(JsonObject district) {
+		if (district.getValue("features") instanceof JsonArray) {
+			for (Object feature : district.getJsonArray("features")) {
+				if (feature instanceof JsonObject) {
+					add((JsonObject) feature);
+				}
+			}
+			return;
+		}
+		Integer number = number(district);
+		JsonObject geometry = district.getValue("geometry") instanceof JsonObject ? district.getJsonObject("geometry") : district;
+		if (number == null || !(geometry.getValue("coordinates") instanceof JsonArray)) {
+			return;
+		}
+		JsonArray coordinates = geometry.getJsonArray("coordinates");
+		if ("Polygon".equals(geometry.getValue("type"))) {
+			addPolygon(number, coordinates);
+		} else if ("MultiPolygon".equals(geometry.getValue("type"))) {
+			for (Object polygon : coordinates) {
+				addPolygon(number, (JsonArray) polygon);
+			}
+		}
+	}
+
+	/**
+	 * @param rings the GeoJSON rings, the outer boundary followed by the holes
+	 */
+	private void addPolygon(int number, JsonArray rings) {
+		if (rings.isEmpty()) {
+			return;
+		}
+		List<Polygon> holes = new ArrayList<>();
+		for (int i = 1; i < rings.size(); i++) {
+			holes.add(ring(rings.getJsonArray(i)));
+		}
+		areas.add(new Area(number, ring(rings.getJsonArray(0)), holes));
+	}
+
+	/**
+	 * @param positions GeoJSON positions, as [lon, lat]
+	 * @return the polygon of the ring
+	 */
+	private static Polygon ring(JsonArray positions) {
+		double[] lat = new double[positions.size()];
+		double[] lon = new double[positions.size()];
+		for (int i = 0; i < positions.size(); i++) {
+			JsonArray position = positions.getJsonArray(i);
+			lon[i] = ((Number) position.getValue(0)).doubleValue();
+			lat[i] = ((Number) position.getValue(1)).doubleValue();
+		}
+		return new Polygon(lat, lon);
+	}
+
+	/**
+	 * @return the district number, null if missing or not an integer
+	 */
+	private static Integer number(JsonObject district) {
+		JsonObject properties = district.getValue("properties") instanceof JsonObject ? district.getJsonObject("properties")
+				: new JsonObject();
+		for (String field : NUMBER_FIELDS) {
+			Object value = district.getValue(field) != null ? district.getValue(field) : properties.getValue(field);
+			if (value instanceof Number) {
+				return ((Number) value).intValue();
+			}
+			if (value != null) {
+				try {
+					return Integer.valueOf(value.toString().trim());
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A polygon of a district, with its holes
+	 */
+	private static class Area {
+		private final int number;
+		private final Polygon boundary;
+		private final List<Polygon> holes;
+
+		private Area(int number, Polygon boundary, List<Polygon> holes) {
+			this.number = number;
+			this.boundary = boundary;
+			this.holes = holes.isEmpty() ? Collections.emptyList() : holes;
+		}
+
+		private boolean contains(double lat, double lon) {
+			if (!boundary.contains(lat, lon)) {
+				return false;
+			}
+			for (Polygon hole : holes) {
+				if (hole.contains(lat, lon)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
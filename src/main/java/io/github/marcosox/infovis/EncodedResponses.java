@@ -0,0 +1,138 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoded responses of the endpoints without parameters, whose data changes rarely.
+ * Every response is kept in a heap buffer, written to the socket without encoding it again,
+ * together with a strong ETag made of the data version and a hash of the bytes,
+ * so that clients revalidating with If-None-Match can be answered with 304 Not Modified.
+ * When the server compresses responses the same entity is sent gzipped or not, so it must be sent
+ * with the {@link #weak(String)} ETag and a Vary: Accept-Encoding header.
+ * Responses are dropped when the data version changes, or after a fixed time to live,
+ * because changes made to MongoDB by other processes do not change the data version.
+ */
+class EncodedResponses {
+	private final long ttlMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * @param ttlMillis responses time to live in milliseconds, 0 to never keep them
+	 */
+	EncodedResponses(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param key     the response key
+	 * @param version the current data version
+	 * @return the response, or null if missing, expired or built from another data version
+	 */
+	Entry get(String key, long version) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.version != version || entry.expiration < System.currentTimeMillis()) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Build a response and keep it.
+	 * The body is kept as it is: Vert.x writes a duplicate of the buffer, so it can be written any number of times.
+	 *
+	 * @param key     the response key
+	 * @param version the data version the response was built from
+	 * @param body    the encoded response body, it must not be modified afterwards
+	 * @return the response
+	 */
+	Entry put(String key, long version, Buffer body) {
+		Entry entry = new Entry(body, etag(version, body.getBytes()), version, System.currentTimeMillis() + ttlMillis);
+		if (ttlMillis > 0) {
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return a strong ETag, changing with the data version and with the response bytes
+	 */
+	private static String etag(long version, byte[] body) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+			StringBuilder etag = new StringBuilder("\"").append(Long.toHexString(version)).append('-');
+			for (int i = 0; i < 12; i++) {
+				etag.append(String.format("%02x", hash[i]));
+			}
+			return etag.append('"').toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);    // every JVM has SHA-256
+		}
+	}
+
+	/**
+	 * @param etag a strong ETag
+	 * @return the weak ETag, valid for every content coding of the response
+	 */
+	static String weak(String etag) {
+		return "W/" + etag;
+	}
+
+	/**
+	 * @param ifNoneMatch the If-None-Match request header, may be null
+	 * @param etag        the current ETag of the resource, strong or weak
+	 * @return true if the client copy is still valid, using the weak comparison required for If-None-Match
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		String opaque = opaque(etag);
+		for (String candidate : ifNoneMatch.split(",")) {
+			String tag = candidate.trim();
+			if (tag.equals("*") || opaque(tag).equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the ETag without the weakness indicator
+	 */
+	private static String opaque(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * An encoded response
+	 */
+	static class Entry {
+		private final Buffer body;
+		private final String etag;
+		private final long version;
+		private final long expiration;
+
+		private Entry(Buffer body, String etag, long version, long expiration) {
+			this.body = body;
+			this.etag = etag;
+			this.version = version;
+			this.expiration = expiration;
+		}
+
+		/**
+		 * @return the response body, shared: it must not be modified
+		 */
+		Buffer getBody() {
+			return body;
+		}
+
+		String getEtag() {
+			return etag;
+		}
+	}
+}
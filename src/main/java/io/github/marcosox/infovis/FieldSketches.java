@@ -0,0 +1,275 @@
+package io.github.marcosox.infovis;
+
+import com.mongodb.client.MongoCursor;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate counts of high cardinality fields, such as the streets.
+ * For each field there is a {@link HyperLogLog} distinct counter and a {@link SpaceSaving} heavy hitters counter
+ * over all the accidents, and one pair for each value of each filter field ({@link AccidentsIndex#FILTER_FIELDS}),
+ * so the top values and the number of distinct values are answered for the whole collection
+ * or for a single filter, in a time that depends on the sketch size and not on the number of accidents.
+ * Each pair has a fixed size, but the number of pairs grows with the number of distinct filter values.
+ * The top values are only returned when they are certainly the most frequent ones, see {@link SpaceSaving#isGuaranteed(int)}.
+ * The sketches are built with one scan of the collection, then {@link #refresh()} only reads the accidents
+ * with an _id above the last one counted and older than the same safety lag of the {@link MongoRollups}:
+ * accidents that are updated, deleted or inserted with a lower _id are only accounted for by {@link #rebuild()}.
+ */
+class FieldSketches {
+	private static final int BATCH_SIZE = 10000;
+
+	private final MongoDAO dao;
+	private final List<String> fields;
+	private final int precision;
+	private final int capacity;
+	private final long safetyLagMillis;
+	private final Object updateLock = new Object();
+	private final Map<String, Sketch> sketches = new HashMap<>();
+	private Object watermark = null;
+
+	/**
+	 * @param dao             the data access layer, null if the accidents are only added with {@link #add(Document)}
+	 * @param fields          the fields to count, top level fields only
+	 * @param precision       precision of the distinct counters, see {@link HyperLogLog}
+	 * @param capacity        number of counters of the heavy hitters counters, see {@link SpaceSaving}
+	 * @param safetyLagMillis only the accidents whose ObjectId is older than this are counted, 0 to count all of them
+	 */
+	FieldSketches(MongoDAO dao, List<String> fields, int precision, int capacity, long safetyLagMillis) {
+		for (String field : fields) {
+			if (field.contains(".")) {
+				throw new IllegalArgumentException("only top level fields can be sketched, not " + field);
+			}
+		}
+		new HyperLogLog(precision);    // validate the parameters before scanning the collection
+		new SpaceSaving(capacity);
+		this.dao = dao;
+		this.fields = new ArrayList<>(fields);
+		this.precision = precision;
+		this.capacity = capacity;
+		this.safetyLagMillis = safetyLagMillis;
+	}
+
+	/**
+	 * @param field a field name
+	 * @return true if the field is sketched
+	 */
+	boolean supports(String field) {
+		return fields.contains(field == null || field.isEmpty() ? "anno" : field);
+	}
+
+	/**
+	 * @return the relative standard error of the distinct counts
+	 */
+	double getRelativeError() {
+		return HyperLogLog.relativeError(precision);
+	}
+
+	/**
+	 * @param filter values of the filter fields, null or empty values are ignored
+	 * @return true if at most one filter field has a value, the only filters kept by the sketches
+	 */
+	static boolean isSingleFilter(Map<String, Object> filter) {
+		return filter == null || filter.values().stream().filter(value -> value != null && !"".equals(value)).count() <= 1;
+	}
+
+	/**
+	 * Drop the sketches and build them again from the whole collection
+	 *
+	 * @return number of accidents counted
+	 */
+	long rebuild() {
+		synchronized (updateLock) {
+			synchronized (this) {
+				sketches.clear();
+				watermark = null;
+			}
+			return refresh();
+		}
+	}
+
+	/**
+	 * Add the accidents imported since the last refresh to the sketches.
+	 * The accidents are added in batches, so queries are answered while the collection is read.
+	 *
+	 * @return number of accidents added
+	 */
+	long refresh() {
+		synchronized (updateLock) {
+			Document range = new Document();
+			if (watermark != null) {
+				range.append("$gt", watermark);
+			}
+			if (safetyLagMillis > 0) {
+				range.append("$lt", new ObjectId(new Date(System.currentTimeMillis() - safetyLagMillis), 0, (short) 0, 0));
+			}
+			Document query = range.isEmpty() ? new Document() : new Document("_id", range);
+			Document projection = new Document();
+			fields.forEach(field -> projection.append(field, 1));
+			AccidentsIndex.FILTER_FIELDS.forEach(field -> projection.append(field, 1));
+
+			long added = 0;
+			List<Document> batch = new ArrayList<>(BATCH_SIZE);
+			try (MongoCursor<Document> cursor = dao.getDatabase().getCollection(dao.getCollectionName()).find(query)
+					.projection(projection).sort(new Document("_id", 1)).batchSize(BATCH_SIZE).iterator()) {
+				while (cursor.hasNext()) {
+					batch.add(cursor.next());
+					if (batch.size() == BATCH_SIZE) {
+						added += add(batch);
+						batch.clear();
+					}
+				}
+				added += add(batch);
+			}
+			return added;
+		}
+	}
+
+	/**
+	 * Add a batch of accidents and advance the watermark
+	 *
+	 * @param batch accidents sorted by _id
+	 * @return number of accidents added
+	 */
+	private synchronized int add(List<Document> batch) {
+		for (Document document : batch) {
+			add(document);
+		}
+		if (!batch.isEmpty()) {
+			watermark = batch.get(batch.size() - 1).get("_id");
+		}
+		return batch.size();
+	}
+
+	/**
+	 * Add an accident to the sketches of each field, for all the accidents and for each of its filter values
+	 *
+	 * @param document the accident, with the sketched fields and the filter fields
+	 */
+	synchronized void add(Document document) {
+		for (String field : fields) {
+			Object value = document.get(field);
+			sketch(key(field, null, null), true).add(value);
+			for (String filter : AccidentsIndex.FILTER_FIELDS) {
+				sketch(key(field, filter, document.get(filter)), true).add(value);
+			}
+		}
+	}
+
+	/**
+	 * Approximation of {@link MongoDAO#getCount(String, int)}
+	 *
+	 * @param limit maximum number of values returned
+	 * @return objects {_id,count,error} sorted by descending count, see {@link SpaceSaving#top(int)},
+	 * or null if they are not certainly the most frequent values
+	 */
+	synchronized JsonArray getCount(String field, int limit) {
+		Sketch sketch = sketch(key(field == null || field.isEmpty() ? "anno" : field, null, null), false);
+		if (sketch == null) {
+			return new JsonArray();
+		}
+		return sketch.topValues.isGuaranteed(limit) ? sketch.topValues.top(limit) : null;
+	}
+
+	/**
+	 * Approximation of {@link MongoDAO#getFacets(Map, List, int)}, for a single filter.
+	 * The total is exact, the counts are as {@link #getCount(String, int)}.
+	 *
+	 * @return an object with the total, the facets and approximate set to true,
+	 * or null if the top values of a field are not certainly the most frequent ones
+	 */
+	synchronized JsonObject getFacets(Map<String, Object> filter, List<String> fields, int limit) {
+		String[] selected = selected(filter);
+		JsonObject facets = new JsonObject();
+		long total = 0;
+		for (String field : fields) {
+			Sketch sketch = sketch(key(field, selected[0], selected[1]), false);
+			if (sketch != null && !sketch.topValues.isGuaranteed(limit)) {
+				return null;
+			}
+			facets.put(field, sketch != null ? sketch.topValues.top(limit) : new JsonArray());
+			total = sketch != null ? sketch.topValues.total() : 0;
+		}
+		return new JsonObject()
+				.put("total", total)
+				.put("facets", facets)
+				.put("approximate", true);
+	}
+
+	/**
+	 * Approximation of {@link MongoDAO#countDistinct(String, Map)}, for a single filter
+	 *
+	 * @return an object with the field, the estimated number of distinct values, approximate set to true
+	 * and the relative standard error of the estimate
+	 */
+	synchronized JsonObject getDistinctCount(String field, Map<String, Object> filter) {
+		String[] selected = selected(filter);
+		Sketch sketch = sketch(key(field, selected[0], selected[1]), false);
+		return new JsonObject()
+				.put("field", field)
+				.put("distinct", sketch != null ? sketch.distinctValues.estimate() : 0)
+				.put("approximate", true)
+				.put("relativeError", getRelativeError());
+	}
+
+	/**
+	 * @return the filter field and value, both null if there is no filter
+	 */
+	private static String[] selected(Map<String, Object> filter) {
+		if (!isSingleFilter(filter)) {
+			throw new IllegalArgumentException("the sketches only support a single filter");
+		}
+		if (filter != null) {
+			for (Map.Entry<String, Object> entry : filter.entrySet()) {
+				if (entry.getValue() != null && !"".equals(entry.getValue())) {
+					return new String[]{entry.getKey(), String.valueOf(entry.getValue())};
+				}
+			}
+		}
+		return new String[]{null, null};
+	}
+
+	/**
+	 * @param field  the sketched field
+	 * @param filter the filter field, null for all the accidents
+	 * @param value  the filter value, as strings and numbers with the same text are the same value
+	 * @return the sketch key
+	 */
+	private static String key(String field, String filter, Object value) {
+		return filter == null ? field : field + "|" + filter + "=" + value;
+	}
+
+	/**
+	 * @param create true to create the sketch if missing
+	 * @return the sketch, null if missing and not created
+	 */
+	private Sketch sketch(String key, boolean create) {
+		return create ? sketches.computeIfAbsent(key, k -> new Sketch(precision, capacity)) : sketches.get(key);
+	}
+
+	/**
+	 * Distinct and heavy hitters counters of a field, for all the accidents or for a filter value
+	 */
+	private static class Sketch {
+		private final HyperLogLog distinctValues;
+		private final SpaceSaving topValues;
+
+		private Sketch(int precision, int capacity) {
+			this.distinctValues = new HyperLogLog(precision);
+			this.topValues = new SpaceSaving(capacity);
+		}
+
+		private void add(Object value) {
+			distinctValues.add(value);
+			topValues.add(value);
+		}
+	}
+}
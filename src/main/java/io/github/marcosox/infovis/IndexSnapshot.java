@@ -0,0 +1,246 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Snapshot file of the in-memory engine, so that a restarted instance does not have to read the whole collection again.
+ * The file stores the columns, bitmaps and spatial index of an {@link AccidentsIndex} and the districts,
+ * together with a stamp identifying the version of the collection they were built from.
+ * It is read through a memory mapping, with bulk copies of the arrays, and is only used if its
+ * format version and stamp match the current ones.
+ * All the values are big endian:
+ * <ul>
+ * <li>int32 magic number and int32 format version</li>
+ * <li>the stamp and the districts, as JSON strings</li>
+ * <li>the index, see {@link AccidentsIndex#write(DataOutputStream)}</li>
+ * <li>int32 magic number, marking a complete file</li>
+ * </ul>
+ */
+class IndexSnapshot {
+	private static final int MAGIC = 0x41434349;
+	/**
+	 * Incremented on every change of the file format, older snapshots are then ignored
+	 */
+	static final int FORMAT_VERSION = 1;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BOOLEAN = 5;
+
+	private final AccidentsIndex index;
+	private final JsonArray districts;
+
+	IndexSnapshot(AccidentsIndex index, JsonArray districts) {
+		this.index = index;
+		this.districts = districts;
+	}
+
+	AccidentsIndex getIndex() {
+		return index;
+	}
+
+	JsonArray getDistricts() {
+		return districts;
+	}
+
+	/**
+	 * Read a snapshot
+	 *
+	 * @param file  the snapshot file
+	 * @param stamp the current version of the collection
+	 * @return the snapshot, or null if the file does not exist or was written by another format version or collection version
+	 * @throws IOException if the file cannot be read or is corrupted
+	 */
+	static IndexSnapshot read(Path file, JsonObject stamp) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC) {
+				throw new IOException("not a snapshot file");
+			}
+			if (in.getInt() != FORMAT_VERSION || !stamp.encode().equals(readString(in))) {
+				return null;
+			}
+			JsonArray districts = new JsonArray(readString(in));
+			AccidentsIndex index = AccidentsIndex.read(in);
+			if (in.getInt() != MAGIC) {
+				throw new IOException("truncated snapshot file");
+			}
+			return new IndexSnapshot(index, districts);
+		} catch (RuntimeException e) {    // buffer underflows and invalid values
+			throw new IOException("corrupted snapshot file", e);
+		}
+	}
+
+	/**
+	 * Write the snapshot to a temporary file, then move it in place,
+	 * so that readers never see a partially written file
+	 *
+	 * @param file  the snapshot file
+	 * @param stamp the version of the collection the snapshot was built from
+	 * @throws IOException if the file cannot be written
+	 */
+	void write(Path file, JsonObject stamp) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, stamp.encode());
+				writeString(out, districts.encode());
+				index.write(out);
+				out.writeInt(MAGIC);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write a column value, with a tag for its type
+	 *
+	 * @throws IOException if the value type is not supported
+	 */
+	static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else {
+			throw new IOException("unsupported value type " + value.getClass().getName());
+		}
+	}
+
+	static Object readValue(ByteBuffer in) throws IOException {
+		byte type = in.get();
+		switch (type) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case INTEGER:
+				return in.getInt();
+			case LONG:
+				return in.getLong();
+			case DOUBLE:
+				return in.getDouble();
+			case BOOLEAN:
+				return in.get() != 0;
+			default:
+				throw new IOException("unknown value type " + type);
+		}
+	}
+
+	static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+		out.writeInt(length);
+		for (int i = 0; i < length; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	static int[] readInts(ByteBuffer in) {
+		int[] values = new int[in.getInt()];
+		in.asIntBuffer().get(values);
+		skip(in, values.length * Integer.BYTES);
+		return values;
+	}
+
+	static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+		out.writeInt(values.length);
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	static long[] readLongs(ByteBuffer in) {
+		long[] values = new long[in.getInt()];
+		in.asLongBuffer().get(values);
+		skip(in, values.length * Long.BYTES);
+		return values;
+	}
+
+	static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	static double[] readDoubles(ByteBuffer in) {
+		double[] values = new double[in.getInt()];
+		in.asDoubleBuffer().get(values);
+		skip(in, values.length * Double.BYTES);
+		return values;
+	}
+
+	static void writeBitmap(DataOutputStream out, RoaringBitmap bitmap) throws IOException {
+		out.writeInt(bitmap.serializedSizeInBytes());
+		bitmap.serialize(out);
+	}
+
+	static RoaringBitmap readBitmap(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		ByteBuffer slice = in.slice();
+		((Buffer) slice).limit(length);
+		RoaringBitmap bitmap = new RoaringBitmap();
+		bitmap.deserialize(slice);
+		skip(in, length);
+		return bitmap;
+	}
+
+	/**
+	 * Advance the buffer position.
+	 * The cast keeps the bytecode compatible with Java 8, where ByteBuffer does not override position(int)
+	 */
+	private static void skip(ByteBuffer in, int bytes) {
+		((Buffer) in).position(in.position() + bytes);
+	}
+}
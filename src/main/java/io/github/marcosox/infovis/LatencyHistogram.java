@@ -0,0 +1,99 @@
+package io.github.marcosox.infovis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * Values are recorded in microseconds: every power of 2 is split in {@link #SUB_BUCKETS} linear buckets,
+ * so the reported percentiles have a relative error below 1 / {@link #SUB_BUCKETS}.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Values above 2^40 microseconds (about 12 days) are recorded in the last bucket
+	 */
+	private static final int MAX_EXPONENT = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param micros the value to record, in microseconds
+	 */
+	void record(long micros) {
+		long value = Math.max(0, micros);
+		buckets.incrementAndGet(Math.min(bucket(value), buckets.length() - 1));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of the recorded values, in microseconds
+	 */
+	long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantiles quantiles between 0 and 1, in ascending order
+	 * @return for each quantile, the upper bound of the bucket containing it, in microseconds, 0 if empty
+	 */
+	long[] getQuantiles(double... quantiles) {
+		long[] snapshot = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		long[] result = new long[quantiles.length];
+		if (total == 0) {
+			return result;
+		}
+		int bucket = 0;
+		long seen = snapshot[0];
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+			while (seen < rank && bucket < snapshot.length - 1) {
+				seen += snapshot[++bucket];
+			}
+			result[q] = upperBound(bucket);
+		}
+		return result;
+	}
+
+	/**
+	 * Values below 2 * {@link #SUB_BUCKETS} have their own bucket,
+	 * then every power of 2 has {@link #SUB_BUCKETS} buckets
+	 *
+	 * @return the bucket index of a value
+	 */
+	private static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value recorded in a bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long mantissa = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -1,10 +1,19 @@
 package io.github.marcosox.infovis;
 
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoExecutionTimeoutException;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
@@ -12,27 +21,62 @@ import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CorsHandler;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class MainVerticle extends AbstractVerticle {
 	private static final String APP_NAME = "Car accidents map - backend";
+	private static final String INDEX_CHECK_OFF = "off";
+	private static final String INDEX_CHECK_FAIL = "fail";
+	/**
+	 * Routing context key of the handler releasing the admission slot of the request
+	 */
+	private static final String ADMISSION_RELEASE = "admissionRelease";
 	private final String APP_VERSION = getClass().getPackage().getSpecificationVersion();
 
 	// local vars
 	private int listeningPort;
+	private boolean compression;
+	private int compressionLevel;
 	private Integer limitCount;
-	private MongoDAO dao;
+	private AsyncMongoDAO dao;
+	private Metrics metrics;
+	private SingleFlight singleFlight;
+	private EncodedResponses encodedResponses;
+	private SharedResources resources;
+	private boolean inMemoryEngine;
+	private Path snapshotFile;
+	private String indexCheck;
+	private boolean createIndexes;
+	private AdmissionControl admissionControl;
+	private int retryAfterSeconds;
+	private int maxResultRows;
+	private long maxStreamedRows;
+	private Path ingestDirectory;
+	private int ingestThreads;
+	private String adminToken;
 
 	/**
 	 * Main entry point
 	 *
-	 * @param fut Vert.x Future object
+	 * @param startPromise completed when the server is listening
 	 */
 	@Override
-	public void start(Future<Void> fut) {
+	public void start(Promise<Void> startPromise) {
 		System.out.println("Welcome to " + APP_NAME + " version " + APP_VERSION);
 		setup();
 		Router router = Router.router(vertx);
+		router.route().handler(this::recordMetrics);
 		router.route().handler(BodyHandler.create());
 		router.route().handler(CorsHandler.create("*")
 				.allowedMethod(HttpMethod.GET)
@@ -40,22 +84,190 @@ public class MainVerticle extends AbstractVerticle {
 				.allowedHeader(HttpHeaders.CONTENT_TYPE.toString())
 				.allowedHeader(HttpHeaders.ORIGIN.toString()));
 
-		router.get("/GetTotals").handler(r -> r.response().putHeader("content-type", "application/json")
-				.end(dao.getTotals().encodePrettily()));
-		router.get("/Municipi").handler(r -> r.response().putHeader("content-type", "application/json")
-				.end(dao.getDistricts().encodePrettily()));
-		router.get("/GetDailyAccidents").handler(r -> r.response().putHeader("content-type", "application/json")
-				.end(dao.getAccidentsByDay().encodePrettily()));
-		router.get("/GetGeocodedAccidents").handler(this::handleGeocodedAccidents);
-		router.get("/GetAccidentDetails").handler(this::handleAccidentDetail);
-		router.get("/GetCountWithHighlight").handler(this::handleCountWithHighLights);
-		router.get("/GetCount").handler(this::handleCount);
-		router.get("/GetIncidentiMunicipi").handler(this::handleGetIncidentiMunicipi);
+		router.route().failureHandler(this::handleFailure);
+
+		// data endpoints, subject to the admission control
+		router.get("/GetTotals").handler(this::admit).handler(r -> {
+			boolean exact = isExact(r);
+			this.<JsonObject>preEncodedJson(r, ResultCache.key("totals", exact), handler -> dao.getTotals(exact, handler));
+		});
+		router.get("/Municipi").handler(this::admit).handler(r -> preEncodedJson(r, ResultCache.key("districts"), dao::getDistricts));
+		router.get("/GetDailyAccidents").handler(this::admit)
+				.handler(r -> preEncodedJson(r, ResultCache.key("accidentsByDay"), dao::getAccidentsByDay));
+		router.get("/GetGeocodedAccidents").handler(this::admit).handler(this::handleGeocodedAccidents);
+		router.get("/GetGeocodedAccidentsPage").handler(this::admit).handler(this::handleGeocodedAccidentsPage);
+		router.get("/GetAccidentsTile/:z/:x/:y").handler(this::admit).handler(this::handleTile);
+		router.get("/GetAccidentsInBox").handler(this::admit).handler(this::handleAccidentsInBox);
+		router.get("/GetPolygonAccidents").handler(this::admit).handler(this::handlePolygonAccidents);
+		router.get("/GetAccidentDetails").handler(this::admit).handler(this::handleAccidentDetail);
+		router.get("/GetAccidentsDetails").handler(this::admit).handler(this::handleAccidentsDetails);
+		router.get("/GetCountWithHighlight").handler(this::admit).handler(this::handleCountWithHighLights);
+		router.get("/GetCount").handler(this::admit).handler(this::handleCount);
+		router.get("/GetIncidentiMunicipi").handler(this::admit).handler(this::handleGetIncidentiMunicipi);
+		router.get("/GetFacets").handler(this::admit).handler(this::handleFacets);
+		router.get("/GetDistinctCount").handler(this::admit).handler(this::handleDistinctCount);
+
+		router.get("/admin/cache").handler(r -> r.response().putHeader("content-type", "application/json")
+				.end(dao.cacheStats().encodePrettily()));
+		// admin endpoints changing the data: POST only, and only with the admin token
+		router.post("/admin/cache/invalidate").handler(this::authorizeAdmin).handler(r -> {
+			dao.invalidateCache();
+			r.response().putHeader("content-type", "application/json").end(dao.cacheStats().encodePrettily());
+		});
+		router.post("/admin/reload").handler(this::authorizeAdmin).handler(this::handleReload);
+		router.post("/admin/rollups/rebuild").handler(this::authorizeAdmin).handler(this::handleRebuildRollups);
+		router.post("/admin/ingest").handler(this::authorizeAdmin).handler(this::handleIngest);
+		router.get("/metrics").handler(r -> r.response().putHeader("content-type", Metrics.CONTENT_TYPE)
+				.end(metrics.toPrometheus(dao.cacheStats())));
 		router.get("/shutdown").handler(this::quit);
 		router.get("/").handler(r -> this.handleRootURL(r, router.getRoutes()));
 
-		vertx.createHttpServer().requestHandler(router::accept).listen(listeningPort);
-		System.out.println("HTTP server ready and listening on port " + listeningPort);
+		Promise<Void> checked = Promise.promise();
+		if (INDEX_CHECK_OFF.equals(indexCheck)) {
+			checked.complete();
+		} else {
+			dao.checkIndexes(createIndexes, result -> {
+				String problem = result.failed() ? result.cause().toString() : AsyncMongoDAO.indexProblem(result.result());
+				if (problem != null && INDEX_CHECK_FAIL.equals(indexCheck)) {
+					checked.fail(new IllegalStateException("index check failed: " + problem));
+				} else {
+					checked.complete();    // the problems have been logged by the check
+				}
+			});
+		}
+		checked.future().compose(v -> listen(router)).onComplete(startPromise);
+	}
+
+	/**
+	 * Start the http server
+	 *
+	 * @param router the request router
+	 * @return completed when the server is listening
+	 */
+	private Future<Void> listen(Router router) {
+		HttpServerOptions serverOptions = new HttpServerOptions()
+				.setCompressionSupported(compression)
+				.setCompressionLevel(compressionLevel);
+		Promise<Void> listening = Promise.promise();
+		vertx.createHttpServer(serverOptions).requestHandler(router).listen(listeningPort, result -> {
+			if (result.succeeded()) {
+				System.out.println("HTTP server ready and listening on port " + listeningPort);
+				listening.complete();
+			} else {
+				listening.fail(result.cause());
+			}
+		});
+		return listening.future();
+	}
+
+	/**
+	 * Release the shared resources when the verticle is undeployed
+	 */
+	@Override
+	public void stop() {
+		if (resources != null) {
+			resources.release(vertx);
+			resources = null;
+		}
+	}
+
+	/**
+	 * Record the latency, status and size of every response
+	 *
+	 * @param r http request routing context
+	 */
+	private void recordMetrics(RoutingContext r) {
+		long start = System.nanoTime();
+		r.response().endHandler(v -> {
+			Route route = r.currentRoute();
+			String path = route != null && route.getPath() != null ? route.getPath() : "other";
+			metrics.recordRequest(path, r.response().getStatusCode(), r.response().bytesWritten(),
+					(System.nanoTime() - start) / 1000);
+		});
+		r.next();
+	}
+
+	/**
+	 * Admission control, run before the data endpoints handlers.
+	 * The request continues when its endpoint has a free slot, waits in the endpoint queue,
+	 * or is rejected with 503 and a Retry-After header if the queue is full.
+	 * The slot is released when the response is ended, fails or is closed before being ended.
+	 * Handlers replacing the response close handler must call the {@link #ADMISSION_RELEASE} handler themselves.
+	 *
+	 * @param r http request routing context
+	 */
+	private void admit(RoutingContext r) {
+		String route = r.currentRoute().getPath();
+		AdmissionControl.Limiter limiter = admissionControl.get(route);
+		AtomicBoolean released = new AtomicBoolean(false);
+		Handler<Void> release = v -> {
+			if (released.compareAndSet(false, true)) {
+				limiter.release();
+			}
+		};
+		boolean accepted = limiter.acquire(vertx.getOrCreateContext(), v -> {
+			if (r.response().closed()) {
+				release.handle(null);    // the client went away while the request was queued
+				return;
+			}
+			r.put(ADMISSION_RELEASE, release);
+			r.addBodyEndHandler(release);
+			r.response().closeHandler(release).exceptionHandler(t -> release.handle(null));
+			r.next();
+		});
+		if (!accepted) {
+			metrics.recordRejected(route);
+			r.response().setStatusCode(503)
+					.putHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+					.end("too many requests, retry later");
+		}
+	}
+
+	/**
+	 * Authorization of the admin endpoints changing the data, run before their handlers.
+	 * The request continues only with an {@code Authorization: Bearer <adminToken>} header:
+	 * a cross-origin page cannot send it without a CORS preflight, which only allows GET.
+	 * The endpoints answer 403 when no admin token is configured.
+	 *
+	 * @param r http request routing context
+	 */
+	private void authorizeAdmin(RoutingContext r) {
+		if (adminToken == null) {
+			r.response().setStatusCode(403).end("the admin endpoints are disabled, set adminToken to enable them");
+			return;
+		}
+		String authorization = r.request().getHeader(HttpHeaders.AUTHORIZATION);
+		String expected = "Bearer " + adminToken;
+		if (authorization == null || !MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8),
+				expected.getBytes(StandardCharsets.UTF_8))) {
+			r.response().setStatusCode(401).putHeader("WWW-Authenticate", "Bearer").end("invalid admin token");
+			return;
+		}
+		r.next();
+	}
+
+	/**
+	 * Failure handler: MongoDB queries exceeding their maximum execution time are answered with 503 and a Retry-After header,
+	 * other failures with the default error response
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleFailure(RoutingContext r) {
+		if (r.failure() instanceof MongoExecutionTimeoutException && !r.response().headWritten()) {
+			r.response().setStatusCode(503)
+					.putHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+					.end("the query took too long, retry later");
+		} else {
+			r.next();
+		}
+	}
+
+	/**
+	 * @param limit the requested number of results, 0 or negative for all the results
+	 * @return the limit, reduced to the maximum result size
+	 */
+	private int resultLimit(int limit) {
+		return limit <= 0 || limit > maxResultRows ? maxResultRows : limit;
 	}
 
 	/**
@@ -64,12 +276,172 @@ public class MainVerticle extends AbstractVerticle {
 	 * @param routingContext http request routing context
 	 */
 	private void quit(RoutingContext routingContext) {
-		dao.disconnect();
+		stop();
 		routingContext.response().putHeader("content-type", "text/plain").end("BYE");
 		vertx.close();
 		System.exit(0);
 	}
 
+	/**
+	 * Reload the derived data after the collection has changed:
+	 * adds the new accidents to the rollups and rebuilds the in-memory engine indexes if enabled,
+	 * and empties the result cache
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleReload(RoutingContext r) {
+		reload(false, new JsonObject(), result -> {
+			if (result.succeeded()) {
+				r.response().putHeader("content-type", "application/json").end(result.result().encodePrettily());
+			} else {
+				r.fail(result.cause());
+			}
+		});
+	}
+
+	/**
+	 * Update the derived data after the collection has changed
+	 *
+	 * @param rebuildRollups true to build the rollups and the sketches again, when existing accidents have been changed
+	 * @param response       the object where the number of accidents counted and loaded are added
+	 * @param handler        completion handler with the response object
+	 */
+	private void reload(boolean rebuildRollups, JsonObject response, Handler<AsyncResult<JsonObject>> handler) {
+		Future<Long> rollups = Future.future(promise -> {
+			if (!dao.hasRollups()) {
+				promise.complete(null);
+			} else if (rebuildRollups) {
+				dao.rebuildRollups(promise);
+			} else {
+				dao.refreshRollups(promise);
+			}
+		});
+		rollups.compose(added -> {
+			if (added != null) {
+				response.put(rebuildRollups ? "rollupsCounted" : "rollupsAdded", added);
+			}
+			return Future.<Long>future(promise -> {
+				if (!dao.hasSketches()) {
+					promise.complete(null);
+				} else if (rebuildRollups) {
+					dao.rebuildSketches(promise);
+				} else {
+					dao.refreshSketches(promise);
+				}
+			});
+		}).compose(added -> {
+			if (added != null) {
+				response.put(rebuildRollups ? "sketchesCounted" : "sketchesAdded", added);
+			}
+			return Future.<Integer>future(promise -> {
+				if (inMemoryEngine) {
+					loadIndex(dao, false, promise);
+				} else {
+					promise.complete(null);
+				}
+			});
+		}).map(loaded -> {
+			if (loaded != null) {
+				response.put("accidents", loaded);
+			}
+			dao.invalidateCache();
+			return response;
+		}).onComplete(handler);
+	}
+
+	/**
+	 * Import a file from the ingestion directory, then update the derived data as /admin/reload.
+	 * The rollups are built again if the import changed existing accidents.
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleIngest(RoutingContext r) {
+		if (ingestDirectory == null) {
+			r.response().setStatusCode(503).end("the ingestion is not enabled");
+			return;
+		}
+		String name = param(r, "file");
+		if (name == null || name.trim().isEmpty()) {
+			r.response().setStatusCode(400).end("missing file parameter");
+			return;
+		}
+		Path file = ingestDirectory.resolve(name.trim()).normalize();
+		if (!file.startsWith(ingestDirectory)) {
+			r.response().setStatusCode(400).end("the file must be inside the ingestion directory");
+			return;
+		}
+		if (!Files.isRegularFile(file)) {
+			r.response().setStatusCode(404).end("file " + name + " not found");
+			return;
+		}
+		System.out.println("Importing " + file);
+		dao.ingest(file, ingestThreads, result -> {
+			if (result.failed()) {
+				if (result.cause() instanceof IllegalStateException) {
+					r.response().setStatusCode(409).end(result.cause().getMessage());
+				} else if (result.cause() instanceof IllegalArgumentException) {
+					r.response().setStatusCode(400).end(result.cause().getMessage());
+				} else {
+					r.fail(result.cause());
+				}
+				return;
+			}
+			JsonObject report = result.result();
+			System.out.println("Imported " + report.encode());
+			reload(report.getLong("modified") > 0, new JsonObject(), reloaded -> {
+				if (reloaded.succeeded()) {
+					report.put("reload", reloaded.result());
+					r.response().putHeader("content-type", "application/json").end(report.encodePrettily());
+				} else {
+					r.fail(reloaded.cause());
+				}
+			});
+		});
+	}
+
+	/**
+	 * Build the rollups again from the whole collection
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleRebuildRollups(RoutingContext r) {
+		if (!dao.hasRollups()) {
+			r.response().setStatusCode(503).end("the rollups are not enabled");
+			return;
+		}
+		dao.rebuildRollups(result -> {
+			if (result.succeeded()) {
+				r.response().putHeader("content-type", "application/json")
+						.end(new JsonObject().put("accidents", result.result()).encodePrettily());
+			} else if (result.cause() instanceof IllegalStateException) {
+				r.response().setStatusCode(409).end(result.cause().getMessage());
+			} else {
+				r.fail(result.cause());
+			}
+		});
+	}
+
+	/**
+	 * Load the in-memory engine
+	 *
+	 * @param dao         the data access layer to load
+	 * @param useSnapshot true to read the snapshot file if it is up to date
+	 * @param handler     completion handler, may be null
+	 */
+	private void loadIndex(AsyncMongoDAO dao, boolean useSnapshot, Handler<AsyncResult<Integer>> handler) {
+		System.out.println("Loading the in-memory engine");
+		dao.loadIndex(snapshotFile, useSnapshot, result -> {
+			if (result.succeeded()) {
+				System.out.println("In-memory engine ready, " + result.result() + " accidents loaded");
+			} else {
+				System.out.println("Error loading the in-memory engine, queries will run on MongoDB: " + result.cause());
+			}
+			if (handler != null) {
+				handler.handle(result);
+			}
+		});
+	}
+
 	/**
 	 * Root url handler
 	 *
@@ -92,21 +464,189 @@ public class MainVerticle extends AbstractVerticle {
 		routingContext.response().putHeader("content-type", "text/html").end(routesList.toString());
 	}
 
+	/**
+	 * Build a result handler that writes the query result as JSON,
+	 * or fails the request if the query failed
+	 *
+	 * @param r http request routing context
+	 * @return the query result handler
+	 */
+	private <T> Handler<AsyncResult<T>> jsonResponse(RoutingContext r) {
+		return result -> {
+			if (result.succeeded()) {
+				r.response().putHeader("content-type", "application/json").end(encode(r, result.result()));
+			} else {
+				r.fail(result.cause());
+			}
+		};
+	}
+
+	/**
+	 * Answer with the JSON encoding of a query result.
+	 * Identical concurrent requests, from all the verticle instances, share the same query and encoded response.
+	 * Invalid parameters are answered with 400, other failures fail the request.
+	 *
+	 * @param r     http request routing context
+	 * @param key   the normalized endpoint and parameters, see {@link ResultCache#key(String, Object...)}
+	 * @param query runs the query, with the given result handler
+	 */
+	private <T> void coalescedJson(RoutingContext r, String key, Handler<Handler<AsyncResult<T>>> query) {
+		coalesced(r, key, query, body -> body,
+				body -> r.response().putHeader("content-type", "application/json").end(body));
+	}
+
+	/**
+	 * Answer with a pre-encoded JSON response and its ETag, for the endpoints without parameters.
+	 * The response is encoded once per data version, and clients with an up to date copy get a 304 response.
+	 *
+	 * @param r     http request routing context
+	 * @param key   the endpoint, see {@link ResultCache#key(String, Object...)}
+	 * @param query runs the query, with the given result handler
+	 */
+	private <T> void preEncodedJson(RoutingContext r, String key, Handler<Handler<AsyncResult<T>>> query) {
+		String responseKey = key + "|" + isPretty(r);
+		long version = dao.dataVersion();
+		EncodedResponses.Entry entry = encodedResponses.get(responseKey, version);
+		if (entry != null) {
+			sendEncoded(r, entry);
+			return;
+		}
+		coalesced(r, key, query, body -> encodedResponses.put(responseKey, version, body), encoded -> sendEncoded(r, encoded));
+	}
+
+	/**
+	 * @param r     http request routing context
+	 * @param entry the pre-encoded response
+	 */
+	private void sendEncoded(RoutingContext r, EncodedResponses.Entry entry) {
+		// with compression the same entity is sent gzipped or not: the ETag is weak and caches must key on the coding
+		String etag = compression ? EncodedResponses.weak(entry.getEtag()) : entry.getEtag();
+		r.response().putHeader(HttpHeaders.ETAG, etag).putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+		if (compression) {
+			r.response().putHeader("Vary", HttpHeaders.ACCEPT_ENCODING);
+		}
+		if (EncodedResponses.matches(r.request().getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+			r.response().setStatusCode(304).end();
+		} else {
+			r.response().putHeader("content-type", "application/json").end(entry.getBody());
+		}
+	}
+
+	/**
+	 * Run a query and encode its result as JSON, or join an identical running request
+	 *
+	 * @param r        http request routing context
+	 * @param key      the normalized endpoint and parameters, see {@link ResultCache#key(String, Object...)}
+	 * @param query    runs the query, with the given result handler
+	 * @param encoded  turns the encoded result into the shared response, runs once for all the joined requests
+	 * @param response writes the shared response
+	 */
+	private <T, R> void coalesced(RoutingContext r, String key, Handler<Handler<AsyncResult<T>>> query,
+								  Function<Buffer, R> encoded, Handler<R> response) {
+		boolean pretty = isPretty(r);
+		boolean joined = singleFlight.<R>execute(vertx, key + "|" + pretty, promise -> query.handle(result -> {
+			if (result.succeeded()) {
+				Buffer body = pretty ? Buffer.buffer(Json.encodePrettily(result.result())) : Json.encodeToBuffer(result.result());
+				promise.complete(encoded.apply(body));
+			} else {
+				promise.fail(result.cause());
+			}
+		}), result -> {
+			if (result.succeeded()) {
+				response.handle(result.result());
+			} else if (result.cause() instanceof IllegalArgumentException) {
+				r.response().setStatusCode(400).end(String.valueOf(result.cause().getMessage()));
+			} else {
+				r.fail(result.cause());
+			}
+		});
+		if (joined) {
+			metrics.recordCoalesced(r.currentRoute().getPath());
+		}
+	}
+
+	/**
+	 * Encode a JSON response, compact unless the request has the pretty=true parameter
+	 *
+	 * @param r     http request routing context
+	 * @param value the value to encode
+	 * @return the encoded value
+	 */
+	private String encode(RoutingContext r, Object value) {
+		return isPretty(r) ? Json.encodePrettily(value) : Json.encode(value);
+	}
+
+	/**
+	 * @param r http request routing context
+	 * @return true if the request has the pretty=true parameter
+	 */
+	private boolean isPretty(RoutingContext r) {
+		return "true".equals(param(r, "pretty"));
+	}
+
+	/**
+	 * @param r http request routing context
+	 * @return true if the client asked for exact counts with the exact=true parameter, instead of the sketches estimates
+	 */
+	private boolean isExact(RoutingContext r) {
+		return "true".equals(param(r, "exact"));
+	}
+
+	/**
+	 * @param r http request routing context
+	 * @return true if the client asked for the binary columnar format,
+	 * with the format=binary parameter or an Accept header preferring application/octet-stream
+	 */
+	private boolean wantsBinary(RoutingContext r) {
+		String format = param(r, "format");
+		if (format != null) {
+			return "binary".equals(format);
+		}
+		String accept = r.request().getHeader(HttpHeaders.ACCEPT);
+		return accept != null && accept.trim().startsWith(ChunkedColumnarWriter.CONTENT_TYPE);
+	}
+
 	/**
 	 * Handler
 	 *
 	 * @param r http request routing context
 	 */
 	private void handleAccidentDetail(RoutingContext r) {
-		String id = r.request().getParam("id");
-		if (id != null) {
-			JsonObject item = dao.getAccidentDetails(id);
+		String id = param(r, "id");
+		if (id == null) {
+			r.response().setStatusCode(400).end("missing id parameter");
+			return;
+		}
+		dao.getAccidentDetails(id, getList(param(r, "fields")), result -> {
+			if (result.failed()) {
+				r.fail(result.cause());
+				return;
+			}
+			JsonObject item = result.result();
 			if (item != null) {
-				r.response().putHeader("content-type", "application/json").end(item.encodePrettily());
+				r.response().putHeader("content-type", "application/json").end(encode(r, item));
 			} else {
 				r.response().setStatusCode(404).end("item " + id + " not found");
 			}
+		});
+	}
+
+	/**
+	 * Handler, returns the accidents with the given comma separated ids with a single query
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleAccidentsDetails(RoutingContext r) {
+		List<String> ids = getList(param(r, "ids"));
+		if (ids == null) {
+			r.response().setStatusCode(400).end("missing ids parameter");
+			return;
 		}
+		if (ids.size() > ConfigurationConstants.MAX_DETAILS_IDS) {
+			r.response().setStatusCode(400).end("too many ids, the maximum is " + ConfigurationConstants.MAX_DETAILS_IDS);
+			return;
+		}
+		dao.getAccidentsDetails(ids, getList(param(r, "fields")), jsonResponse(r));
 	}
 
 	/**
@@ -115,10 +655,22 @@ public class MainVerticle extends AbstractVerticle {
 	 * @param r http request routing context
 	 */
 	private void handleCount(RoutingContext r) {
-		String fieldName = r.request().getParam("field");
-		int n = getInt(r.request().getParam("limit"), limitCount);
-		r.response().putHeader("content-type", "application/json").end(
-				dao.getCount(fieldName, n).encodePrettily());
+		String fieldName = param(r, "field");
+		int n = resultLimit(getInt(param(r, "limit"), limitCount));
+		boolean exact = isExact(r);
+		this.<JsonArray>coalescedJson(r, ResultCache.key("count", fieldName, n, exact), handler -> dao.getCount(fieldName, n, exact, handler));
+	}
+
+	/**
+	 * Read a query parameter, normalized once for both the cache key and the query
+	 *
+	 * @param r    http request routing context
+	 * @param name the parameter name
+	 * @return the trimmed parameter value, or null if missing or blank
+	 */
+	private String param(RoutingContext r, String name) {
+		String value = r.request().getParam(name);
+		return value == null || value.trim().isEmpty() ? null : value.trim();
 	}
 
 	/**
@@ -138,18 +690,98 @@ public class MainVerticle extends AbstractVerticle {
 		return n;
 	}
 
+	/**
+	 * @param param a comma separated list
+	 * @return the non empty list items, or null if there are none
+	 */
+	private List<String> getList(String param) {
+		if (param == null) {
+			return null;
+		}
+		List<String> items = new ArrayList<>();
+		for (String item : param.split(",")) {
+			if (!item.trim().isEmpty()) {
+				items.add(item.trim());
+			}
+		}
+		return items.isEmpty() ? null : items;
+	}
+
 	/**
 	 * Handler
 	 *
 	 * @param r http request routing context
 	 */
 	private void handleGetIncidentiMunicipi(RoutingContext r) {
-		String anno = r.request().getParam("anno");
-		String mese = r.request().getParam("mese");
-		String giorno = r.request().getParam("giorno");
-		String ora = r.request().getParam("ora");
-		r.response().putHeader("content-type", "application/json").end(
-				dao.getDistrictsAccidents(anno, mese, giorno, ora).encodePrettily());
+		String anno = param(r, "anno");
+		String mese = param(r, "mese");
+		String giorno = param(r, "giorno");
+		String ora = param(r, "ora");
+		this.<JsonArray>coalescedJson(r, ResultCache.key("districtsAccidents", anno, mese, giorno, ora),
+				handler -> dao.getDistrictsAccidents(anno, mese, giorno, ora, handler));
+	}
+
+	/**
+	 * Handler, counts the accidents matching the anno, mese, giorno, ora and numero_gruppo parameters
+	 * grouped by each one of the comma separated fields, with a single query
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleFacets(RoutingContext r) {
+		List<String> fields = getList(param(r, "fields"));
+		if (fields == null) {
+			r.response().setStatusCode(400).end("missing fields parameter");
+			return;
+		}
+		if (fields.size() > ConfigurationConstants.MAX_FACETS) {
+			r.response().setStatusCode(400).end("too many fields, the maximum is " + ConfigurationConstants.MAX_FACETS);
+			return;
+		}
+		Map<String, Object> filter = getFilter(r);
+		if (filter == null) {
+			return;
+		}
+		int limit = resultLimit(getInt(param(r, "limit"), limitCount));
+		boolean exact = isExact(r);
+		this.<JsonObject>coalescedJson(r, AsyncMongoDAO.facetsKey(filter, fields, limit, exact),
+				handler -> dao.getFacets(filter, fields, limit, exact, handler));
+	}
+
+	/**
+	 * Handler, counts the distinct values of the field parameter in the accidents matching
+	 * the anno, mese, giorno, ora and numero_gruppo parameters
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleDistinctCount(RoutingContext r) {
+		String value = param(r, "field");
+		String field = value == null ? "anno" : value;
+		Map<String, Object> filter = getFilter(r);
+		if (filter == null) {
+			return;
+		}
+		boolean exact = isExact(r);
+		this.<JsonObject>coalescedJson(r, AsyncMongoDAO.distinctCountKey(field, filter, exact),
+				handler -> dao.getDistinctCount(field, filter, exact, handler));
+	}
+
+	/**
+	 * @param r http request routing context
+	 * @return the values of the filter fields parameters, or null if a value is invalid and the request has been answered
+	 */
+	private Map<String, Object> getFilter(RoutingContext r) {
+		Map<String, Object> filter = new LinkedHashMap<>();
+		try {
+			for (String field : AccidentsIndex.FILTER_FIELDS) {
+				String value = param(r, field);
+				boolean integer = "ora".equals(field) || "numero_gruppo".equals(field);    // the other fields are strings
+				filter.put(field, integer && value != null ? Integer.valueOf(value) : value);
+			}
+		} catch (NumberFormatException e) {
+			r.response().setStatusCode(400).end("ora and numero_gruppo must be integers");
+			return null;
+		}
+		return filter;
 	}
 
 	/**
@@ -158,11 +790,137 @@ public class MainVerticle extends AbstractVerticle {
 	 * @param r http request routing context
 	 */
 	private void handleGeocodedAccidents(RoutingContext r) {
-		String year = r.request().getParam("year");
-		String district = r.request().getParam("district");
-		String hour = r.request().getParam("hour");
-		r.response().putHeader("content-type", "application/json").end(
-				dao.getAllAccidents(year, district, hour).encodePrettily());
+		String year = param(r, "year");
+		String district = param(r, "district");
+		String hour = param(r, "hour");
+		ChunkedResponseWriter writer = wantsBinary(r)
+				? new ChunkedColumnarWriter(vertx.getOrCreateContext(), r.response(), r.get(ADMISSION_RELEASE))
+				: new ChunkedJsonArrayWriter(vertx.getOrCreateContext(), r.response(), r.get(ADMISSION_RELEASE));
+		dao.streamAllAccidents(year, district, hour, maxStreamedRows, writer, result -> {
+			if (result.failed()) {
+				if (r.response().headWritten()) {
+					r.response().close();    // the response is already partially sent, drop the connection
+				} else {
+					r.fail(result.cause());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Handler, returns a page of geocoded accidents and the token of the next page
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleGeocodedAccidentsPage(RoutingContext r) {
+		String year = param(r, "year");
+		String district = param(r, "district");
+		String hour = param(r, "hour");
+		String after = param(r, "after");
+		int limit = getInt(param(r, "limit"), ConfigurationConstants.DEFAULT_PAGE_SIZE);
+		if (limit <= 0 || limit > ConfigurationConstants.MAX_PAGE_SIZE) {
+			r.response().setStatusCode(400).end("limit must be between 1 and " + ConfigurationConstants.MAX_PAGE_SIZE);
+			return;
+		}
+		dao.getAccidentsPage(year, district, hour, after, limit, badRequestOrJson(r));
+	}
+
+	/**
+	 * Handler, requires the in-memory engine
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleTile(RoutingContext r) {
+		if (!dao.isIndexLoaded()) {
+			r.response().setStatusCode(503).end("map tiles require the in-memory engine");
+			return;
+		}
+		int z, x, y;
+		try {
+			z = Integer.parseInt(param(r, "z"));
+			x = Integer.parseInt(param(r, "x"));
+			y = Integer.parseInt(param(r, "y"));
+		} catch (NumberFormatException e) {
+			r.response().setStatusCode(400).end("invalid tile coordinates");
+			return;
+		}
+		int resolution = getInt(param(r, "resolution"), ConfigurationConstants.DEFAULT_TILE_RESOLUTION);
+		String year = param(r, "year");
+		String district = param(r, "district");
+		String hour = param(r, "hour");
+		this.<JsonObject>coalescedJson(r, ResultCache.key("tile", z, x, y, resolution, year, district, hour),
+				handler -> dao.getTile(z, x, y, resolution, year, district, hour, handler));
+	}
+
+	/**
+	 * Handler, returns the geocoded accidents inside the south, west, north, east bounding box.
+	 * Requires the in-memory engine
+	 *
+	 * @param r http request routing context
+	 */
+	private void handleAccidentsInBox(RoutingContext r) {
+		if (!dao.isIndexLoaded()) {
+			r.response().setStatusCode(503).end("viewport queries require the in-memory engine");
+			return;
+		}
+		double south, west, north, east;
+		try {
+			south = Double.parseDouble(param(r, "south"));
+			west = Double.parseDouble(param(r, "west"));
+			north = Double.parseDouble(param(r, "north"));
+			east = Double.parseDouble(param(r, "east"));
+		} catch (NullPointerException | NumberFormatException e) {
+			r.response().setStatusCode(400).end("south, west, north and east must be numbers");
+			return;
+		}
+		int limit = resultLimit(getInt(param(r, "limit"), ConfigurationConstants.DEFAULT_PAGE_SIZE));
+		dao.getAccidentsInBox(south, west, north, east, param(r, "year"), param(r, "district"),
+				param(r, "hour"), limit, badRequestOrJson(r));
+	}
+
+	/**
+	 * Handler, counts the geocoded accidents inside the polygon parameter, as lat,lon;lat,lon;...
+	 * grouped by the field parameter. Requires the in-memory engine
+	 *
+	 * @param r http request routing context
+	 */
+	private void handlePolygonAccidents(RoutingContext r) {
+		if (!dao.isIndexLoaded()) {
+			r.response().setStatusCode(503).end("polygon queries require the in-memory engine");
+			return;
+		}
+		String vertices = param(r, "polygon");
+		if (vertices == null) {
+			r.response().setStatusCode(400).end("missing polygon parameter");
+			return;
+		}
+		Polygon polygon;
+		try {
+			polygon = Polygon.parse(vertices);
+		} catch (IllegalArgumentException e) {
+			r.response().setStatusCode(400).end(String.valueOf(e.getMessage()));
+			return;
+		}
+		int limit = resultLimit(getInt(param(r, "limit"), limitCount));
+		dao.getPolygonAccidents(polygon, param(r, "field"), limit, param(r, "year"),
+				param(r, "district"), param(r, "hour"), badRequestOrJson(r));
+	}
+
+	/**
+	 * Build a result handler that writes the query result as JSON,
+	 * answers 400 if the query failed for invalid parameters, or fails the request
+	 *
+	 * @param r http request routing context
+	 * @return the query result handler
+	 */
+	private <T> Handler<AsyncResult<T>> badRequestOrJson(RoutingContext r) {
+		return result -> {
+			if (result.failed() && result.cause() instanceof IllegalArgumentException) {
+				r.response().setStatusCode(400).end(String.valueOf(result.cause().getMessage()));
+			} else {
+				this.<T>jsonResponse(r).handle(result);
+			}
+		};
 	}
 
 	/**
@@ -171,13 +929,13 @@ public class MainVerticle extends AbstractVerticle {
 	 * @param r http request routing context
 	 */
 	private void handleCountWithHighLights(RoutingContext r) {
-		String fieldName = r.request().getParam("field");
-		String highlightField = r.request().getParam("highlight-field");
-		String highlightValue = r.request().getParam("highlight-value");
-		int limit = getInt(r.request().getParam("limit"), 20);
-		boolean sortDescending = !("asc".equals(r.request().getParam("sort")));
-		r.response().putHeader("content-type", "application/json").end(
-				dao.getAggregateCount(fieldName, limit, highlightField, highlightValue, sortDescending).encodePrettily());
+		String fieldName = param(r, "field");
+		String highlightField = param(r, "highlight-field");
+		String highlightValue = param(r, "highlight-value");
+		int limit = resultLimit(getInt(param(r, "limit"), 20));
+		boolean sortDescending = !("asc".equals(param(r, "sort")));
+		this.<JsonArray>coalescedJson(r, ResultCache.key("aggregateCount", fieldName, limit, highlightField, highlightValue, sortDescending),
+				handler -> dao.getAggregateCount(fieldName, limit, highlightField, highlightValue, sortDescending, handler));
 	}
 
 	/**
@@ -185,6 +943,8 @@ public class MainVerticle extends AbstractVerticle {
 	 */
 	private void setup() {
 		this.listeningPort = config().getInteger("listeningPort", ConfigurationConstants.DEFAULT_PORT);
+		this.compression = config().getBoolean("compression", true);
+		this.compressionLevel = config().getInteger("compressionLevel", ConfigurationConstants.DEFAULT_COMPRESSION_LEVEL);
 		String dbHost = Vertx.currentContext().config().getString("dbHost", ConfigurationConstants.DEFAULT_DB_HOST);
 		int dbPort = Vertx.currentContext().config().getInteger("dbPort", ConfigurationConstants.DEFAULT_DB_PORT);
 		String dbUser = Vertx.currentContext().config().getString("dbUser", null);
@@ -193,6 +953,79 @@ public class MainVerticle extends AbstractVerticle {
 		String dbName = Vertx.currentContext().config().getString("dbName", ConfigurationConstants.DEFAULT_DB_NAME);
 		String collectionName = Vertx.currentContext().config().getString("collectionName", ConfigurationConstants.DEFAULT_COLLECTION_NAME);
 		this.limitCount = Vertx.currentContext().config().getInteger("queryLimitCount", ConfigurationConstants.DEFAULT_RESULT_LIMIT);
-		this.dao = new MongoDAO(dbHost, dbPort, dbName, collectionName, dbUser, dbPwd, authDB);
+		this.inMemoryEngine = Vertx.currentContext().config().getBoolean("inMemoryEngine", false);
+		this.indexCheck = Vertx.currentContext().config().getString("indexCheck", ConfigurationConstants.DEFAULT_INDEX_CHECK);
+		this.createIndexes = Vertx.currentContext().config().getBoolean("createIndexes", true);
+		this.retryAfterSeconds = Vertx.currentContext().config().getInteger("retryAfterSeconds", ConfigurationConstants.DEFAULT_RETRY_AFTER_SECONDS);
+		this.maxResultRows = Vertx.currentContext().config().getInteger("maxResultRows", ConfigurationConstants.DEFAULT_MAX_RESULT_ROWS);
+		this.maxStreamedRows = Vertx.currentContext().config().getLong("maxStreamedRows", ConfigurationConstants.DEFAULT_MAX_STREAMED_ROWS);
+		String snapshot = Vertx.currentContext().config().getString("snapshotFile", null);
+		this.snapshotFile = snapshot != null && !snapshot.trim().isEmpty() ? Paths.get(snapshot) : null;
+		String ingest = Vertx.currentContext().config().getString("ingestDirectory", null);
+		this.ingestDirectory = ingest != null && !ingest.trim().isEmpty() ? Paths.get(ingest).toAbsolutePath().normalize() : null;
+		this.ingestThreads = Vertx.currentContext().config().getInteger("ingestThreads", Runtime.getRuntime().availableProcessors());
+		String token = Vertx.currentContext().config().getString("adminToken", null);
+		this.adminToken = token != null && !token.trim().isEmpty() ? token.trim() : null;
+
+		// the data access layer is shared by all the verticle instances, only the first one creates it
+		this.resources = SharedResources.acquire(vertx, () -> {
+			int workerPoolSize = Vertx.currentContext().config().getInteger("workerPoolSize", ConfigurationConstants.DEFAULT_WORKER_POOL_SIZE);
+			int streamPoolSize = Vertx.currentContext().config().getInteger("streamPoolSize", ConfigurationConstants.DEFAULT_STREAM_POOL_SIZE);
+			long cacheTtlMillis = Vertx.currentContext().config().getLong("cacheTtlSeconds", ConfigurationConstants.DEFAULT_CACHE_TTL_SECONDS) * 1000;
+			ResultCache cache = new ResultCache(
+					cacheTtlMillis,
+					Vertx.currentContext().config().getInteger("cacheMaxEntries", ConfigurationConstants.DEFAULT_CACHE_MAX_ENTRIES),
+					Vertx.currentContext().config().getLong("cacheMaxBytes", ConfigurationConstants.DEFAULT_CACHE_MAX_BYTES));
+			MongoClientOptions options = MongoClientOptions.builder()
+					.connectionsPerHost(Vertx.currentContext().config().getInteger("dbMaxPoolSize", ConfigurationConstants.DEFAULT_DB_MAX_POOL_SIZE))
+					.minConnectionsPerHost(Vertx.currentContext().config().getInteger("dbMinPoolSize", ConfigurationConstants.DEFAULT_DB_MIN_POOL_SIZE))
+					.threadsAllowedToBlockForConnectionMultiplier(
+							Vertx.currentContext().config().getInteger("dbWaitQueueMultiple", ConfigurationConstants.DEFAULT_DB_WAIT_QUEUE_MULTIPLE))
+					.maxWaitTime(Vertx.currentContext().config().getInteger("dbMaxWaitTimeMs", ConfigurationConstants.DEFAULT_DB_MAX_WAIT_TIME_MS))
+					.connectTimeout(Vertx.currentContext().config().getInteger("dbConnectTimeoutMs", ConfigurationConstants.DEFAULT_DB_CONNECT_TIMEOUT_MS))
+					.socketTimeout(Vertx.currentContext().config().getInteger("dbSocketTimeoutMs", ConfigurationConstants.DEFAULT_DB_SOCKET_TIMEOUT_MS))
+					.build();
+			MongoDAO mongoDAO = new MongoDAO(dbHost, dbPort, dbName, collectionName, dbUser, dbPwd, authDB, options);
+			mongoDAO.setMaxTime(Vertx.currentContext().config().getLong("dbMaxTimeMs", ConfigurationConstants.DEFAULT_DB_MAX_TIME_MS));
+			Metrics sharedMetrics = new Metrics();
+			boolean rollups = Vertx.currentContext().config().getBoolean("rollups", false);
+			long safetyLagMillis = 1000 * Vertx.currentContext().config().getLong("rollupSafetyLagSeconds",
+					ConfigurationConstants.DEFAULT_ROLLUP_SAFETY_LAG_SECONDS);
+			JsonArray sketchFields = Vertx.currentContext().config().getJsonArray("sketchFields", new JsonArray());
+			FieldSketches sketches = sketchFields.isEmpty() ? null : new FieldSketches(mongoDAO,
+					sketchFields.stream().map(String::valueOf).collect(Collectors.toList()),
+					Vertx.currentContext().config().getInteger("sketchPrecision", ConfigurationConstants.DEFAULT_SKETCH_PRECISION),
+					Vertx.currentContext().config().getInteger("sketchCapacity", ConfigurationConstants.DEFAULT_SKETCH_CAPACITY),
+					safetyLagMillis);
+			AsyncMongoDAO sharedDao = new AsyncMongoDAO(vertx, mongoDAO, workerPoolSize, streamPoolSize, cache, sharedMetrics,
+					rollups ? new MongoRollups(mongoDAO, safetyLagMillis) : null, sketches);
+			if (inMemoryEngine) {
+				loadIndex(sharedDao, true, null);
+			}
+			if (rollups || sketches != null) {
+				long refreshSeconds = Vertx.currentContext().config().getLong("rollupRefreshSeconds",
+						ConfigurationConstants.DEFAULT_ROLLUP_REFRESH_SECONDS);
+				sharedDao.scheduleRefresh(refreshSeconds * 1000, result -> {
+					if (result.failed()) {
+						System.out.println("Error refreshing the rollups, queries will aggregate the collection: " + result.cause());
+					} else if (result.result() > 0) {
+						System.out.println("Rollups refreshed, " + result.result() + " accidents added");
+					}
+				}, result -> {
+					if (result.failed()) {
+						System.out.println("Error refreshing the sketches, counts will be exact: " + result.cause());
+					} else if (result.result() > 0) {
+						System.out.println("Sketches refreshed, " + result.result() + " accidents added");
+					}
+				});
+			}
+			return new SharedResources(sharedDao, sharedMetrics, new EncodedResponses(cacheTtlMillis),
+					new AdmissionControl(Vertx.currentContext().config().getJsonObject("admission")));
+		});
+		this.dao = resources.getDao();
+		this.metrics = resources.getMetrics();
+		this.singleFlight = resources.getSingleFlight();
+		this.encodedResponses = resources.getEncodedResponses();
+		this.admissionControl = resources.getAdmissionControl();
 	}
 }
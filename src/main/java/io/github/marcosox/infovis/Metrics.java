@@ -0,0 +1,157 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Request and query metrics, exported in the Prometheus text format.
+ * Recording only touches lock free counters, so it can stay enabled in production.
+ */
+class Metrics {
+	static final String SOURCE_MONGO = "mongo";
+	static final String SOURCE_MEMORY = "memory";
+	static final String SOURCE_ROLLUP = "rollup";
+	static final String SOURCE_SKETCH = "sketch";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+	private final Map<String, Stats> requests = new ConcurrentHashMap<>();
+	private final Map<String, Stats> queries = new ConcurrentHashMap<>();
+
+	/**
+	 * Record a served http request
+	 *
+	 * @param route  the route path
+	 * @param status the response status code
+	 * @param bytes  the response body size
+	 * @param micros the request duration in microseconds
+	 */
+	void recordRequest(String route, int status, long bytes, long micros) {
+		Stats stats = requests.computeIfAbsent(labels("route", route), k -> new Stats());
+		stats.record(micros, status >= 500);
+		stats.bytes.add(bytes);
+	}
+
+	/**
+	 * Record a request answered by joining an identical request already running
+	 *
+	 * @param route the route path
+	 */
+	void recordCoalesced(String route) {
+		requests.computeIfAbsent(labels("route", route), k -> new Stats()).coalesced.increment();
+	}
+
+	/**
+	 * Record a request rejected because too many requests to the same route were running or waiting
+	 *
+	 * @param route the route path
+	 */
+	void recordRejected(String route) {
+		requests.computeIfAbsent(labels("route", route), k -> new Stats()).rejected.increment();
+	}
+
+	/**
+	 * Record a query execution
+	 *
+	 * @param method   the query name
+	 * @param source   where the query reads from
+	 * @param micros   the query duration in microseconds
+	 * @param returned number of rows returned
+	 * @param scanned  number of rows read, 0 if unknown
+	 * @param failed   true if the query failed
+	 */
+	void recordQuery(String method, String source, long micros, long returned, long scanned, boolean failed) {
+		Stats stats = queries.computeIfAbsent(labels("method", method) + "," + labels("source", source), k -> new Stats());
+		stats.record(micros, failed);
+		stats.rowsReturned.add(returned);
+		stats.rowsScanned.add(scanned);
+	}
+
+	/**
+	 * @param cacheStats the result cache statistics
+	 * @return all the metrics in the Prometheus text format
+	 */
+	String toPrometheus(JsonObject cacheStats) {
+		StringBuilder out = new StringBuilder();
+		Map<String, Stats> sortedRequests = new TreeMap<>(requests);
+		Map<String, Stats> sortedQueries = new TreeMap<>(queries);
+
+		counter(out, "http_requests_total", "Served http requests", sortedRequests, s -> s.count.sum());
+		counter(out, "http_request_errors_total", "Http requests answered with a 5xx status", sortedRequests, s -> s.errors.sum());
+		counter(out, "http_requests_coalesced_total", "Http requests sharing the response of an identical running request",
+				sortedRequests, s -> s.coalesced.sum());
+		counter(out, "http_requests_rejected_total", "Http requests rejected by the admission control",
+				sortedRequests, s -> s.rejected.sum());
+		counter(out, "http_response_bytes_total", "Bytes written in http response bodies", sortedRequests, s -> s.bytes.sum());
+		summary(out, "http_request_duration_seconds", "Http request latency", sortedRequests);
+
+		counter(out, "dao_queries_total", "Executed queries", sortedQueries, s -> s.count.sum());
+		counter(out, "dao_query_errors_total", "Failed queries", sortedQueries, s -> s.errors.sum());
+		counter(out, "dao_rows_returned_total", "Rows returned by the queries", sortedQueries, s -> s.rowsReturned.sum());
+		counter(out, "dao_rows_scanned_total", "Rows read by the in-memory engine queries", sortedQueries, s -> s.rowsScanned.sum());
+		summary(out, "dao_query_duration_seconds", "Query latency, including the MongoDB round trip", sortedQueries);
+
+		for (String name : cacheStats.fieldNames()) {
+			Object value = cacheStats.getValue(name);
+			if (value instanceof Number) {
+				String metric = "result_cache_" + name.replaceAll("([A-Z])", "_$1").toLowerCase();
+				out.append("# TYPE ").append(metric).append(" gauge\n")
+						.append(metric).append(' ').append(value).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private static void counter(StringBuilder out, String name, String help, Map<String, Stats> stats, Function<Stats, Long> value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		stats.forEach((labels, s) -> out.append(name).append('{').append(labels).append("} ").append(value.apply(s)).append('\n'));
+	}
+
+	private static void summary(StringBuilder out, String name, String help, Map<String, Stats> stats) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" summary\n");
+		stats.forEach((labels, s) -> {
+			long[] values = s.latency.getQuantiles(QUANTILES);
+			for (int i = 0; i < QUANTILES.length; i++) {
+				out.append(name).append('{').append(labels).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+						.append(values[i] / 1e6).append('\n');
+			}
+			out.append(name).append("_sum{").append(labels).append("} ").append(s.latency.getSum() / 1e6).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(s.latency.getCount()).append('\n');
+		});
+	}
+
+	/**
+	 * @return a Prometheus label, with the value escaped
+	 */
+	private static String labels(String name, String value) {
+		String escaped = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return name + "=\"" + escaped + "\"";
+	}
+
+	private static class Stats {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder coalesced = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder rowsReturned = new LongAdder();
+		private final LongAdder rowsScanned = new LongAdder();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private void record(long micros, boolean failed) {
+			count.increment();
+			if (failed) {
+				errors.increment();
+			}
+			latency.record(micros);
+		}
+	}
+}
@@ -1,23 +1,73 @@
 package io.github.marcosox.infovis;
 
 import com.mongodb.Block;
+import com.mongodb.MongoException;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.AggregateIterable;
-import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.IndexOptions;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.bson.Document;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 
 class MongoDAO {
+	private static final int SCAN_BATCH_SIZE = 5000;
+
+	/**
+	 * Indice unico sull'id incidente: gli import paralleli aggiornano lo stesso documento invece di duplicarlo
+	 */
+	static final Document UNIQUE_INDEX = new Document("incidente", 1);
+
+	/**
+	 * Indici usati dalle query: ricerca per id incidente, filtri del calendario e filtri della mappa
+	 */
+	static final List<Document> INDEXES = Arrays.asList(
+			UNIQUE_INDEX,
+			new Document("anno", 1).append("mese", 1).append("giorno", 1).append("ora", 1),
+			new Document("anno", 1).append("numero_gruppo", 1).append("ora", 1),
+			new Document("numero_gruppo", 1).append("ora", 1),
+			new Document("ora", 1));
+
+	/**
+	 * Filtri delle query piu' frequenti, con valori di esempio, che non devono leggere tutta la collezione
+	 */
+	static final Map<String, Document> QUERY_SHAPES = new LinkedHashMap<>();
+
+	static {
+		QUERY_SHAPES.put("getAccidentDetails", new Document("incidente", "0"));
+		QUERY_SHAPES.put("getAccidentsDetails", new Document("incidente", new Document("$in", Arrays.asList("0", "1"))));
+		QUERY_SHAPES.put("getAllAccidents(year)", new Document("anno", "2014"));
+		QUERY_SHAPES.put("getAllAccidents(district)", new Document("numero_gruppo", 1));
+		QUERY_SHAPES.put("getAllAccidents(hour)", new Document("ora", 12));
+		QUERY_SHAPES.put("getAllAccidents(year,district)", new Document("anno", "2014").append("numero_gruppo", 1));
+		QUERY_SHAPES.put("getAllAccidents(year,hour)", new Document("anno", "2014").append("ora", 12));
+		QUERY_SHAPES.put("getAllAccidents(district,hour)", new Document("numero_gruppo", 1).append("ora", 12));
+		QUERY_SHAPES.put("getAllAccidents(year,district,hour)",
+				new Document("anno", "2014").append("numero_gruppo", 1).append("ora", 12));
+		QUERY_SHAPES.put("getDistrictsAccidents(anno,mese)", new Document("anno", "2014").append("mese", "05"));
+		QUERY_SHAPES.put("getDistrictsAccidents(anno,mese,giorno)",
+				new Document("anno", "2014").append("mese", "05").append("giorno", "01"));
+		QUERY_SHAPES.put("getDistrictsAccidents(anno,mese,giorno,ora)",
+				new Document("anno", "2014").append("mese", "05").append("giorno", "01").append("ora", 12));
+	}
+
 	private String host;
 	private int port;
 	private String dbName;
@@ -25,9 +75,17 @@ class MongoDAO {
 	private String user;
 	private String authDatabase;
 	private String password;
+	private MongoClientOptions options;
 	private MongoClient client = null;
+	private long maxTimeMs = 0;
 
 	MongoDAO(String host, int port, String dbName, String collectionName, String user, String password, String authenticationDB) {
+		this(host, port, dbName, collectionName, user, password, authenticationDB, MongoClientOptions.builder().build());
+	}
+
+	MongoDAO(String host, int port, String dbName, String collectionName, String user, String password, String authenticationDB,
+			 MongoClientOptions options) {
+		this.options = options;
 		this.host = host;
 		this.port = port;
 		this.dbName = dbName;
@@ -47,17 +105,28 @@ class MongoDAO {
 			if (this.user != null && this.password != null && this.authDatabase != null) {   // validate credentials
 				// authenticated instance
 				MongoCredential credential = MongoCredential.createCredential(this.user, this.authDatabase, this.password.toCharArray());
-				this.client = new MongoClient(address, Collections.singletonList(credential));
+				this.client = new MongoClient(address, Collections.singletonList(credential), this.options);
 			} else {
 				// unauthenticated instance
-				this.client = new MongoClient(address);
+				this.client = new MongoClient(address, this.options);
 			}
 		} else {
 			// local unauthenticated instance
-			this.client = new MongoClient();
+			this.client = new MongoClient(new ServerAddress(), this.options);
 		}
 	}
 
+	/**
+	 * Imposta il tempo massimo di esecuzione sul server (maxTimeMS) delle query che rispondono alle richieste,
+	 * oltre il quale la query fallisce con {@link com.mongodb.MongoExecutionTimeoutException}.
+	 * Non si applica alla lettura dell'intera collezione per il motore in memoria e alla verifica degli indici.
+	 *
+	 * @param millis tempo massimo in millisecondi, 0 per nessun limite
+	 */
+	void setMaxTime(long millis) {
+		this.maxTimeMs = millis;
+	}
+
 	/**
 	 * Disconnect from MongoDB
 	 */
@@ -80,6 +149,107 @@ class MongoDAO {
 		return this.client;
 	}
 
+	/**
+	 * @return the database storing the data
+	 */
+	MongoDatabase getDatabase() {
+		return getClient().getDatabase(this.dbName);
+	}
+
+	/**
+	 * @return the name of the accidents collection
+	 */
+	String getCollectionName() {
+		return this.collectionName;
+	}
+
+	/**
+	 * Crea o verifica gli indici dichiarati in {@link #INDEXES},
+	 * poi controlla con explain che le query in {@link #QUERY_SHAPES} non leggano tutta la collezione.
+	 *
+	 * @param create true per creare gli indici mancanti (in background), false per segnalarli soltanto
+	 * @return un oggetto JSON con gli indici creati (created) o mancanti (missing),
+	 * le query che leggerebbero tutta la collezione (collectionScans) e quelle non verificabili (unchecked)
+	 */
+	JsonObject checkIndexes(boolean create) {
+		MongoDatabase db = getClient().getDatabase(this.dbName);
+		MongoCollection<Document> collection = db.getCollection(this.collectionName);
+
+		Map<List<String>, Boolean> existing = new HashMap<>();    // chiavi dell'indice -> indice unico
+		collection.listIndexes().forEach((Block<Document>) index ->
+				existing.put(new ArrayList<>(index.get("key", Document.class).keySet()), index.getBoolean("unique", false)));
+		JsonArray created = new JsonArray();
+		JsonArray missing = new JsonArray();
+		for (Document keys : INDEXES) {
+			boolean unique = keys == UNIQUE_INDEX;
+			Boolean found = existing.get(new ArrayList<>(keys.keySet()));
+			if (found != null && found == unique) {
+				continue;
+			}
+			String description = keys.toJson() + (unique ? " unique" : "");
+			if (found == null && create) {
+				try {
+					created.add(collection.createIndex(keys, new IndexOptions().background(true).unique(unique)));
+				} catch (MongoException e) {    // la collezione contiene gia' degli incidenti duplicati
+					missing.add(description + ": " + e.getMessage());
+				}
+			} else if (found == null) {
+				missing.add(description);
+			} else {
+				// un indice non unico sulle stesse chiavi va eliminato a mano, dopo aver rimosso i duplicati
+				missing.add(description + ": an index on the same keys exists and is not unique");
+			}
+		}
+
+		JsonArray collectionScans = new JsonArray();
+		JsonArray unchecked = new JsonArray();
+		QUERY_SHAPES.forEach((name, filter) -> {
+			try {
+				Document explain = db.runCommand(new Document("explain",
+						new Document("find", this.collectionName).append("filter", filter))
+						.append("verbosity", "queryPlanner"));
+				Document planner = explain.get("queryPlanner", Document.class);
+				Document plan = planner != null ? planner.get("winningPlan", Document.class) : null;
+				if (plan == null) {
+					unchecked.add(name);
+				} else if (hasStage(plan, "COLLSCAN")) {
+					collectionScans.add(name);
+				}
+			} catch (MongoException e) {    // explain non supportato dal server o non autorizzato
+				unchecked.add(name);
+			}
+		});
+		return new JsonObject()
+				.put("created", created)
+				.put("missing", missing)
+				.put("collectionScans", collectionScans)
+				.put("unchecked", unchecked);
+	}
+
+	/**
+	 * @param plan  uno stage di un piano di esecuzione
+	 * @param stage nome dello stage da cercare
+	 * @return true se il piano o uno dei suoi stage di input e' dello stage cercato
+	 */
+	private static boolean hasStage(Document plan, String stage) {
+		if (stage.equals(plan.getString("stage"))) {
+			return true;
+		}
+		Document input = plan.get("inputStage", Document.class);
+		if (input != null && hasStage(input, stage)) {
+			return true;
+		}
+		Object inputs = plan.get("inputStages");
+		if (inputs instanceof List) {
+			for (Object child : (List<?>) inputs) {
+				if (child instanceof Document && hasStage((Document) child, stage)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Effettua il conto dei documenti in una collezione raggruppati in base ad
 	 * un campo passato come parametro.
@@ -110,35 +280,169 @@ class MongoDAO {
 			list.add(new Document("$limit", limit));
 		}
 
-		iterable = collection.aggregate(list);
+		iterable = collection.aggregate(list).maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
 		iterable.forEach((Block<Document>) result::add);
 
 		return result;
 	}
 
+	/**
+	 * Conta i documenti raggruppati per piu' campi con un solo filtro, in un'unica aggregazione:
+	 * uno stage $facet esegue i raggruppamenti sugli stessi documenti filtrati,
+	 * quindi la collezione viene letta una sola volta invece di una volta per campo come con {@link #getCount(String, int)}
+	 *
+	 * @param filter valori dei campi da filtrare, i valori null o vuoti sono ignorati
+	 * @param fields campi su cui fare i raggruppamenti
+	 * @param limit  numero massimo di valori per campo, ignorato se non positivo
+	 * @return un oggetto JSON con il totale dei documenti filtrati e, per ogni campo,
+	 * un array di oggetti con campi _id e count ordinati per count decrescente
+	 */
+	JsonObject getFacets(Map<String, Object> filter, List<String> fields, int limit) {
+		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		Document matchFilter = matchFilter(filter);
+
+		// i nomi dei campi possono contenere punti, non ammessi come nomi degli output di $facet
+		Document facets = new Document("total", Collections.singletonList(
+				new Document("$group", new Document("_id", null).append("count", new Document("$sum", 1)))));
+		for (int i = 0; i < fields.size(); i++) {
+			String field = fields.get(i);
+			List<Document> stages = new ArrayList<>();
+			stages.add(new Document("$project", new Document("field", "$" + field)));
+			if (field.contains(".")) {
+				stages.add(new Document("$unwind", "$field"));
+			}
+			stages.add(new Document("$group", new Document("_id", "$field").append("count", new Document("$sum", 1))));
+			stages.add(new Document("$sort", new Document("count", -1)));
+			if (limit > 0) {
+				stages.add(new Document("$limit", limit));
+			}
+			facets.append("f" + i, stages);
+		}
+
+		Document document = collection.aggregate(Arrays.asList(new Document("$match", matchFilter), new Document("$facet", facets)))
+				.allowDiskUse(true)
+				.maxTime(maxTimeMs, TimeUnit.MILLISECONDS)
+				.first();
+		List<?> total = document != null ? document.get("total", List.class) : Collections.emptyList();
+		JsonObject result = new JsonObject();
+		for (int i = 0; i < fields.size(); i++) {
+			JsonArray counts = new JsonArray();
+			List<?> groups = document != null ? document.get("f" + i, List.class) : Collections.emptyList();
+			for (Object group : groups) {
+				Document d = (Document) group;
+				counts.add(new JsonObject().put("_id", d.get("_id")).put("count", d.getInteger("count")));
+			}
+			result.put(fields.get(i), counts);
+		}
+		return new JsonObject()
+				.put("total", total.isEmpty() ? 0 : ((Document) total.get(0)).getInteger("count"))
+				.put("facets", result);
+	}
+
 	/**
 	 * Conta i totali dei documenti presenti nelle collezioni veicoli, incidenti, persone.
+	 * Le singole conte sono indipendenti: {@link AsyncMongoDAO} le esegue in parallelo.
 	 *
 	 * @return un array di oggetti JSON con due campi: collezione e totale, per ogni collezione.
 	 */
 	JsonObject getTotals() {
-		MongoDatabase db = getClient().getDatabase(this.dbName);
-		MongoCollection<Document> incidenti = db.getCollection(this.collectionName);
 		JsonObject risultato = new JsonObject();
-		risultato.put("incidenti", incidenti.count());
+		risultato.put("incidenti", countAccidents());
+		risultato.put("veicoli", countElements("veicoli"));
+		risultato.put("persone", countElements("persone"));
+		risultato.put("strade", countDistinct("strada"));
+		return risultato;
+	}
 
-		// itera direttamente su queste collezioni e per ognuna conta il totale
-		String[] collectionsList = {"veicoli", "persone"};
+	/**
+	 * Conta gli incidenti, dai metadati della collezione
+	 *
+	 * @return il numero di incidenti
+	 */
+	long countAccidents() {
+		return getClient().getDatabase(this.dbName).getCollection(this.collectionName)
+				.count(new Document(), new CountOptions().maxTime(maxTimeMs, TimeUnit.MILLISECONDS));
+	}
 
-		for (String s : collectionsList) {
-			List<Document> pipeline = new ArrayList<>();
-			pipeline.add(new Document("$unwind", "$" + s));
-			pipeline.add(new Document("$group", new Document("_id", "null").append("count", new Document("$sum", 1))));
-			AggregateIterable<Document> result = incidenti.aggregate(pipeline);
-			risultato.put(s, result.first().getInteger("count"));
-		}
-		risultato.put("strade", this.getCount("strada", -1).size());
-		return risultato;
+	/**
+	 * Conta gli elementi di un campo array in tutti gli incidenti
+	 *
+	 * @param field il campo array, ad esempio veicoli o persone
+	 * @return il numero totale di elementi
+	 */
+	int countElements(String field) {
+		List<Document> pipeline = Arrays.asList(
+				new Document("$project", new Document("_id", 0).append(field, 1)),
+				new Document("$unwind", "$" + field),
+				new Document("$group", new Document("_id", null).append("count", new Document("$sum", 1))));
+		return firstCount(pipeline);
+	}
+
+	/**
+	 * Conta i valori distinti di un campo, interamente sul server:
+	 * il primo $group raccoglie i valori, il secondo li conta, e al client arriva un solo documento
+	 *
+	 * @param field il campo da contare
+	 * @return il numero di valori distinti, compreso il valore nullo se presente
+	 */
+	int countDistinct(String field) {
+		return countDistinct(field, Collections.emptyMap());
+	}
+
+	/**
+	 * Conta i valori distinti di un campo negli incidenti filtrati, come {@link #countDistinct(String)}
+	 *
+	 * @param field  il campo da contare
+	 * @param filter valori dei campi da filtrare, i valori null o vuoti sono ignorati
+	 * @return il numero di valori distinti, compreso il valore nullo se presente
+	 */
+	int countDistinct(String field, Map<String, Object> filter) {
+		List<Document> pipeline = Arrays.asList(
+				new Document("$match", matchFilter(filter)),
+				new Document("$group", new Document("_id", "$" + field)),
+				new Document("$group", new Document("_id", null).append("count", new Document("$sum", 1))));
+		return firstCount(pipeline);
+	}
+
+	/**
+	 * @param filter valori dei campi da filtrare, i valori null o vuoti sono ignorati
+	 * @return il filtro per lo stage $match, vuoto se non ci sono valori
+	 */
+	private static Document matchFilter(Map<String, Object> filter) {
+		Document matchFilter = new Document();
+		filter.forEach((field, value) -> {
+			if (value != null && !"".equals(value)) {
+				matchFilter.append(field, value);
+			}
+		});
+		return matchFilter;
+	}
+
+	/**
+	 * @param pipeline una pipeline che termina con un $group con il campo count
+	 * @return il conteggio, 0 se la collezione e' vuota
+	 */
+	private int firstCount(List<Document> pipeline) {
+		MongoCollection<Document> incidenti = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		Document result = incidenti.aggregate(pipeline).allowDiskUse(true).maxTime(maxTimeMs, TimeUnit.MILLISECONDS).first();
+		return result != null ? result.getInteger("count") : 0;
+	}
+
+	/**
+	 * Identifica la versione dei dati, per verificare se i dati derivati salvati sono ancora validi.
+	 * Il numero di documenti e l'_id massimo si leggono dai metadati e dall'indice su _id, senza scorrere la collezione.
+	 *
+	 * @return un oggetto JSON con il numero di incidenti, l'_id massimo e il numero di municipi
+	 */
+	JsonObject getCollectionVersion() {
+		MongoDatabase db = getClient().getDatabase(this.dbName);
+		MongoCollection<Document> collection = db.getCollection(this.collectionName);
+		Document last = collection.find().projection(new Document("_id", 1)).sort(new Document("_id", -1)).first();
+		return new JsonObject()
+				.put("collection", this.dbName + "." + this.collectionName)
+				.put("count", collection.count())
+				.put("maxId", last != null ? String.valueOf(last.get("_id")) : null)
+				.put("districts", db.getCollection("districts").count());
 	}
 
 	/**
@@ -149,34 +453,159 @@ class MongoDAO {
 	JsonArray getDistricts() {
 		JsonArray result = new JsonArray();
 		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection("districts");
-		collection.find().forEach((Block<Document>) d -> result.add(new JsonObject(d)));
+		collection.find().maxTime(maxTimeMs, TimeUnit.MILLISECONDS).forEach((Block<Document>) d -> result.add(new JsonObject(d)));
 		return result;
 	}
 
 	/**
 	 * recupera un documento dal db
 	 *
-	 * @param id id incidente
-	 * @return il documento dell'incidente o un documento vuoto
+	 * @param id     id incidente
+	 * @param fields campi da leggere, se null o vuota tutti i campi
+	 * @return il documento dell'incidente o null
 	 */
-	JsonObject getAccidentDetails(String id) {
+	JsonObject getAccidentDetails(String id, List<String> fields) {
 		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
-		FindIterable<Document> iterable = collection.find(new Document("incidente", id));
-		JsonObject result = null;
-		if (iterable.first() != null) {
-			result = new JsonObject(iterable.first());
-		}
+		Document document = collection.find(new Document("incidente", id)).projection(projection(fields))
+				.maxTime(maxTimeMs, TimeUnit.MILLISECONDS).first();
+		return document != null ? new JsonObject(document) : null;
+	}
+
+	/**
+	 * Recupera piu' documenti dal db con una sola query
+	 *
+	 * @param ids    id degli incidenti
+	 * @param fields campi da leggere, se null o vuota tutti i campi
+	 * @return i documenti degli incidenti trovati, nell'ordine della collezione
+	 */
+	JsonArray getAccidentsDetails(List<String> ids, List<String> fields) {
+		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		JsonArray result = new JsonArray();
+		collection.find(new Document("incidente", new Document("$in", ids)))
+				.projection(projection(fields))
+				.maxTime(maxTimeMs, TimeUnit.MILLISECONDS)
+				.forEach((Block<Document>) d -> result.add(new JsonObject(d)));
 		return result;
 	}
 
+	/**
+	 * @param fields campi da leggere, se null o vuota tutti i campi
+	 * @return la proiezione che legge solo i campi richiesti, o null per leggere tutti i campi
+	 */
+	private static Document projection(List<String> fields) {
+		if (fields == null || fields.isEmpty()) {
+			return null;
+		}
+		Document projection = new Document();
+		fields.forEach(f -> projection.append(f, 1));
+		if (!fields.contains("_id")) {
+			projection.append("_id", 0);
+		}
+		return projection;
+	}
+
 	/**
 	 * Recupera tutti gli incidenti e li ritorna in una lista per visualizzarli sulla mappa
 	 *
 	 * @return una lista di oggetti {lat,lon,protocollo}
 	 */
 	JsonArray getAllAccidents(String year, String district, String hour) {
+		JsonArray result = new JsonArray();
+		forEachAccident(year, district, hour, item -> {
+			result.add(item);
+			return true;
+		});
+		return result;
+	}
+
+	/**
+	 * Scorre gli incidenti geolocalizzati senza caricarli tutti in memoria
+	 *
+	 * @param year     anno da filtrare, se null e' ignorato
+	 * @param district municipio da filtrare, se null e' ignorato
+	 * @param hour     ora da filtrare, se null e' ignorata
+	 * @param consumer riceve gli oggetti {lat,lon,protocollo}, ritorna false per interrompere la lettura
+	 */
+	void forEachAccident(String year, String district, String hour, Predicate<JsonObject> consumer) {
 		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		Document matchFilter = accidentsFilter(year, district, hour);
+
+		try (MongoCursor<Document> cursor = collection.find(matchFilter)
+				.projection(new Document("_id", 0).append("lat", 1).append("lon", 1).append("incidente", 1))
+				.batchSize(SCAN_BATCH_SIZE)
+				.maxTime(maxTimeMs, TimeUnit.MILLISECONDS)
+				.iterator()) {
+			while (cursor.hasNext()) {
+				Document d = cursor.next();
+				if (AccidentsIndex.isCoordinate(d.get("lat")) && AccidentsIndex.isCoordinate(d.get("lon"))) {
+					boolean proceed = consumer.test(new JsonObject()
+							.put("lat", d.get("lat"))
+							.put("lon", d.get("lon"))
+							.put("protocollo", d.getString("incidente")));
+					if (!proceed) {
+						break;
+					}
+				}
+			}
+		}
+	}
 
+	/**
+	 * Recupera una pagina di incidenti geolocalizzati, in ordine di _id.
+	 * La pagina successiva parte dall'_id dell'ultimo incidente (keyset pagination),
+	 * quindi ogni pagina usa l'indice su _id senza scorrere le pagine precedenti.
+	 *
+	 * @param year     anno da filtrare, se null e' ignorato
+	 * @param district municipio da filtrare, se null e' ignorato
+	 * @param hour     ora da filtrare, se null e' ignorata
+	 * @param after    token della pagina, restituito dalla pagina precedente, null per la prima pagina
+	 * @param limit    numero massimo di incidenti nella pagina
+	 * @return un oggetto con l'array items di oggetti {lat,lon,protocollo}
+	 * e il token next della pagina successiva, null se non ci sono altri incidenti
+	 * @throws IllegalArgumentException se il token non e' valido
+	 */
+	JsonObject getAccidentsPage(String year, String district, String hour, String after, int limit) {
+		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		Document matchFilter = accidentsFilter(year, district, hour)    // solo gli incidenti con coordinate stringa o numeriche
+				.append("$and", Arrays.asList(coordinateFilter("lat"), coordinateFilter("lon")));
+		if (after != null && !after.isEmpty()) {
+			matchFilter.append("_id", new Document("$gt", PageToken.decode(after)));
+		}
+
+		List<Document> page = collection.find(matchFilter)
+				.projection(new Document("lat", 1).append("lon", 1).append("incidente", 1))
+				.sort(new Document("_id", 1))
+				.limit(limit + 1)    // un incidente in piu' per sapere se esiste la pagina successiva
+				.maxTime(maxTimeMs, TimeUnit.MILLISECONDS)
+				.into(new ArrayList<>());
+		JsonArray items = new JsonArray();
+		for (Document d : page.subList(0, Math.min(limit, page.size()))) {
+			items.add(new JsonObject()
+					.put("lat", d.get("lat"))
+					.put("lon", d.get("lon"))
+					.put("protocollo", d.getString("incidente")));
+		}
+		String next = page.size() > limit ? PageToken.encode(page.get(limit - 1).get("_id")) : null;
+		return new JsonObject().put("items", items).put("next", next);
+	}
+
+	/**
+	 * @param field campo della coordinata
+	 * @return il filtro sulle coordinate stringa (importate con mongoimport) o numeriche (double, int o long),
+	 * coerente con AccidentsIndex.isCoordinate
+	 */
+	private static Document coordinateFilter(String field) {
+		return new Document("$or", Arrays.asList(
+				new Document(field, new Document("$type", 2)),     // string
+				new Document(field, new Document("$type", 1)),     // double
+				new Document(field, new Document("$type", 16)),    // int
+				new Document(field, new Document("$type", 18))));  // long
+	}
+
+	/**
+	 * @return il filtro sugli incidenti per anno, municipio e ora, i parametri null o vuoti sono ignorati
+	 */
+	private static Document accidentsFilter(String year, String district, String hour) {
 		Document matchFilter = new Document();
 		if (year != null && !year.isEmpty()) {
 			matchFilter.append("anno", year);
@@ -187,19 +616,20 @@ class MongoDAO {
 		if (hour != null && !hour.isEmpty()) {
 			matchFilter.append("ora", Integer.valueOf(hour));
 		}
+		return matchFilter;
+	}
 
-		FindIterable<Document> iterable = collection.find(matchFilter);
-
-		JsonArray result = new JsonArray();
-		iterable.forEach((Block<Document>) d -> {
-			if(d.getString("lat") != null && d.getString("lon") != null) {
-				result.add(new JsonObject()
-						.put("lat", d.getString("lat"))
-						.put("lon", d.getString("lon"))
-						.put("protocollo", d.getString("incidente")));
-			}
-		});
-		return result;
+	/**
+	 * Scorre tutti i documenti della collezione leggendo solo i campi richiesti
+	 *
+	 * @param fields campi da leggere
+	 * @param block  riceve ogni documento
+	 */
+	void forEachDocument(List<String> fields, Block<Document> block) {
+		MongoCollection<Document> collection = getClient().getDatabase(this.dbName).getCollection(this.collectionName);
+		Document projection = new Document("_id", 0);
+		fields.forEach(f -> projection.append(f, 1));
+		collection.find().projection(projection).batchSize(SCAN_BATCH_SIZE).forEach(block);
 	}
 
 	/**
@@ -229,7 +659,7 @@ class MongoDAO {
 			matchFilter.append("ora", Integer.valueOf(ora));    // ora e' un intero, mese giorno e anno sono stringhe
 		}
 
-		long incidenti = collection.count(matchFilter);    // stores matches count
+		long incidenti = collection.count(matchFilter, new CountOptions().maxTime(maxTimeMs, TimeUnit.MILLISECONDS));    // stores matches count
 		Document match = new Document("$match", matchFilter);    // includi il filtro in uno stage match della pipeline
 		aggregationPipeline.add(match);
 		aggregationPipeline.add(new Document(
@@ -237,7 +667,7 @@ class MongoDAO {
 				.append("count", new Document("$sum", 1)
 				)
 		));
-		AggregateIterable<Document> iterable = collection.aggregate(aggregationPipeline);
+		AggregateIterable<Document> iterable = collection.aggregate(aggregationPipeline).maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
 
 		JsonArray result = new JsonArray();
 		iterable.forEach((Block<Document>) d -> {
@@ -263,22 +693,17 @@ class MongoDAO {
 						new Document("_id",
 								new Document("anno", "$anno").append("mese", "$mese").append("giorno", "$giorno"))
 								.append("totale", new Document("$sum", 1))));
-		aggregationPipeline.add(
-				new Document("$group", new Document("tot", new Document("$push", new Document("total", "$totale"))).append("_id", "$_id")));
 
-		AggregateIterable<Document> iterable = collection.aggregate(aggregationPipeline);
+		AggregateIterable<Document> iterable = collection.aggregate(aggregationPipeline).maxTime(maxTimeMs, TimeUnit.MILLISECONDS);
 		JsonArray result = new JsonArray();
 		iterable.forEach((Block<Document>) d -> {
 			Document dc = new Document();
 			String anno = d.get("_id", Document.class).getString("anno");
 			String mese = d.get("_id", Document.class).getString("mese");
 			String giorno = d.get("_id", Document.class).getString("giorno");
-			@SuppressWarnings("unchecked")
-			ArrayList<Document> lista = d.get("tot", ArrayList.class);    // necessario cast unchecked
-			int count = lista.get(0).getInteger("total");
 			String data = anno + "-" + mese + "-" + giorno;
 			dc.append("data", data);
-			dc.append("count", count);
+			dc.append("count", d.getInteger("totale"));
 			result.add(dc);
 		});
 		return result;
@@ -288,8 +713,9 @@ class MongoDAO {
 	 * Effettua il conto dei documenti raggruppati in base ad un campo passato come parametro.
 	 * Per ogni valore riporta il totale relativo di un altro campo passato come parametro.
 	 * es: riporta il conto di ogni veicolo nel authDatabase, e per ogni veicolo
-	 * riporta quanti incidenti in una certa via
-	 * TODO: anziche' fare la seconda query, filtrare il risultato della prima
+	 * riporta quanti incidenti in una certa via.
+	 * Totale ed evidenziati sono calcolati nella stessa aggregazione con una somma condizionale,
+	 * quindi la collezione viene letta una sola volta e i conti evidenziati sono sempre quelli dei valori restituiti.
 	 *
 	 * @param field          campo su cui fare l'aggregazione
 	 * @param highlightField campo del sottovalore da riportare
@@ -309,42 +735,37 @@ class MongoDAO {
 			field = "anno"; // default
 		}
 
+		// 1 se il documento ha il valore evidenziato, senza filtro tutti i documenti sono evidenziati
+		Object isHighlighted = new Document("$literal", 1);
+		if (highlightField != null && !highlightField.isEmpty() && highlightValue != null && !highlightValue.isEmpty()) {
+			// come il $match, il valore puo' essere uguale al campo o contenuto nel campo se questo e' un array;
+			// $literal impedisce che un valore che inizia con $ sia interpretato come un campo
+			Document values = new Document("$cond", Arrays.asList(
+					new Document("$isArray", "$" + highlightField),
+					"$" + highlightField,
+					Collections.singletonList("$" + highlightField)));
+			isHighlighted = new Document("$cond", Arrays.asList(
+					new Document("$in", Arrays.asList(new Document("$literal", highlightValue), values)), 1, 0));
+		}
+
 		List<Document> list = new ArrayList<>();
-		list.add(new Document("$project", new Document("field", "$" + field)));
+		list.add(new Document("$project", new Document("field", "$" + field).append("highlighted", isHighlighted)));
 		if (field.contains(".")) {
 			list.add(new Document("$unwind", "$field"));
 		}
-		list.add(new Document("$group", new Document("_id", "$field").append(countFieldName, new Document("$sum", 1))));
+		list.add(new Document("$group", new Document("_id", "$field")
+				.append(countFieldName, new Document("$sum", 1))
+				.append(highlightFieldName, new Document("$sum", "$highlighted"))));
 		list.add(new Document("$sort", new Document("count", sortDescending ? -1 : 1)));
-		list.add(new Document("$limit", limit));
-
-		List<Document> listWithMatch = new ArrayList<>();
-		if (highlightField != null && !highlightField.isEmpty() && highlightValue != null && !highlightValue.isEmpty()) {
-			listWithMatch.add(new Document("$match", new Document(highlightField, highlightValue)));
-		}
-		listWithMatch.add(new Document("$project", new Document("field", "$" + field)));
-		if (field.contains(".")) {
-			listWithMatch.add(new Document("$unwind", "$field"));
+		if (limit > 0) {
+			list.add(new Document("$limit", limit));
 		}
-		listWithMatch.add(new Document("$group", new Document("_id", "$field").append(countFieldName, new Document("$sum", 1))));
-		listWithMatch.add(new Document("$sort", new Document("count", sortDescending ? -1 : 1)));
-		listWithMatch.add(new Document("$limit", limit));
-
-		AggregateIterable<Document> countIterable = collection.aggregate(list);
-		AggregateIterable<Document> highlightIterable = collection.aggregate(listWithMatch);
 
 		JsonArray result = new JsonArray();
-		JsonObject highlightCounts = new JsonObject();
-
-		highlightIterable.forEach((Block<Document>) document -> highlightCounts.put(
-				String.valueOf(document.getOrDefault("_id", "null")),
-				document.getOrDefault(countFieldName, 0)));
-
-		countIterable.forEach((Block<Document>) document -> {
-			String id = String.valueOf(document.getOrDefault("_id", "null"));
-			int highlightCount = highlightCounts.getInteger(id, 0);
+		collection.aggregate(list).maxTime(maxTimeMs, TimeUnit.MILLISECONDS).forEach((Block<Document>) document -> {
+			int highlightCount = document.getInteger(highlightFieldName, 0);
 			JsonObject entry = new JsonObject();
-			entry.put("_id", id);
+			entry.put("_id", String.valueOf(document.getOrDefault("_id", "null")));
 			entry.put(countFieldName, document.getInteger(countFieldName) - highlightCount);    // subtract highlights from count
 			entry.put(highlightFieldName, highlightCount);
 			result.add(entry);
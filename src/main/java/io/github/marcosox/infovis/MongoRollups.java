@@ -0,0 +1,423 @@
+package io.github.marcosox.infovis;
+
+import com.mongodb.Block;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Materialized rollups of the accidents collection, stored in MongoDB next to it:
+ * <ul>
+ * <li>{@code <collection>_rollup_daily}: accidents per day</li>
+ * <li>{@code <collection>_rollup_districts}: accidents per day, hour and district</li>
+ * <li>{@code <collection>_rollup_streets}: accidents per street</li>
+ * <li>{@code <collection>_rollup_totals}: a single document with the accidents, vehicles and people totals,
+ * the watermark, the highest accident _id already counted, and the lease of the batch being counted</li>
+ * </ul>
+ * The rollups are built with a full scan, then {@link #refresh()} only reads the accidents
+ * with an _id above the watermark and adds them to the counters with upserts, one batch at a time:
+ * <ol>
+ * <li>the next batch, from the watermark to the _id of its last accident, is claimed with a compare-and-set
+ * on the totals document, so that only one process at a time counts it, even with several processes
+ * refreshing the same rollups</li>
+ * <li>the counters are incremented with upserts that also record the batch, and skip the counters
+ * already incremented by the same batch: if the refresh fails halfway, the process taking over the expired lease
+ * counts the same batch again without counting any accident twice</li>
+ * <li>the totals, the watermark and the release of the lease are written with a single update</li>
+ * </ol>
+ * This relies on increasing _ids, as the ObjectIds generated by mongoimport, by the drivers and by the upserts
+ * of {@link AccidentsImporter}. Since concurrent writers do not make their accidents visible in _id order,
+ * only the accidents whose ObjectId is older than a safety lag are counted, so that a write still in progress
+ * when its batch is counted is not skipped forever. With a lag of 0 any _id type is counted.
+ * Accidents that are updated, deleted or inserted with a lower _id are only accounted for by {@link #rebuild()}.
+ */
+class MongoRollups {
+	private static final int BATCH_SIZE = 10000;
+	private static final String TOTALS_ID = "totals";
+	private static final long LEASE_MILLIS = 5 * 60 * 1000;
+	private static final long LEASE_POLL_MILLIS = 1000;
+
+	private final MongoDAO dao;
+	private final long safetyLagMillis;
+	private final String owner = UUID.randomUUID().toString();
+
+	/**
+	 * @param safetyLagMillis only the accidents whose ObjectId is older than this are counted, 0 to count all of them
+	 */
+	MongoRollups(MongoDAO dao, long safetyLagMillis) {
+		this.dao = dao;
+		this.safetyLagMillis = safetyLagMillis;
+	}
+
+	/**
+	 * Drop the rollups and build them again from the whole collection.
+	 * Waits for the batch being counted by another process, if any, and holds the lease while dropping the rollups.
+	 *
+	 * @return number of accidents counted
+	 */
+	synchronized long rebuild() {
+		createTotals();
+		while (!claimRebuild()) {
+			try {
+				Thread.sleep(LEASE_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for the rollups lease", e);
+			}
+		}
+		reset();
+		return refresh();
+	}
+
+	/**
+	 * Add the accidents imported since the last refresh to the rollups, one batch at a time,
+	 * building them if they do not exist yet.
+	 * Stops without error if another process is counting a batch: it will count the following ones too.
+	 *
+	 * @return number of accidents added by this process
+	 */
+	synchronized long refresh() {
+		createTotals();
+		long added = 0;
+		while (true) {
+			Document totals = collection("totals").find(new Document("_id", TOTALS_ID)).first();
+			Document lease = totals.get("lease", Document.class);
+			Object from;
+			Object to;
+			if (lease != null) {
+				// a batch or a rebuild was started and not completed: take it over if its lease has expired
+				if (((Number) lease.get("expires")).longValue() > System.currentTimeMillis() || !takeOver(lease)) {
+					return added;
+				}
+				if (lease.containsKey("rebuild")) {
+					reset();
+					continue;
+				}
+				from = lease.get("from");
+				to = lease.get("to");
+			} else {
+				from = totals.get("watermark");
+				to = nextBatchEnd(from);
+				if (to == null) {
+					return added;
+				}
+				if (!claimBatch(from, to)) {
+					continue;    // another process claimed it first
+				}
+			}
+			Batch batch = count(from, to);
+			batch.apply(to);
+			if (!complete(batch, to)) {
+				return added;    // the lease expired and was taken over, the other process completes the batch
+			}
+			added += batch.size;
+		}
+	}
+
+	/**
+	 * Create the totals document of empty rollups, if missing
+	 */
+	private void createTotals() {
+		collection("totals").updateOne(new Document("_id", TOTALS_ID), new Document("$setOnInsert", emptyTotals()),
+				new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * Drop the counters and reset the totals, releasing the rebuild lease held by this process.
+	 * Both steps can be repeated, so a rebuild that fails halfway is completed by the process taking over its lease.
+	 */
+	private void reset() {
+		for (String name : Arrays.asList("daily", "districts", "streets")) {
+			collection(name).drop();
+		}
+		collection("totals").replaceOne(new Document("_id", TOTALS_ID).append("lease.owner", owner), emptyTotals());
+	}
+
+	/**
+	 * @param from the watermark, null if nothing has been counted
+	 * @return the _id of the last accident of the next batch, or null if there are no accidents to count
+	 */
+	private Object nextBatchEnd(Object from) {
+		Document range = range(from, null);
+		List<Document> ids = new ArrayList<>();
+		dao.getDatabase().getCollection(dao.getCollectionName()).find(range.isEmpty() ? new Document() : new Document("_id", range))
+				.projection(new Document("_id", 1))
+				.sort(new Document("_id", 1))
+				.skip(BATCH_SIZE - 1)
+				.limit(1)
+				.into(ids);
+		if (!ids.isEmpty()) {
+			return ids.get(0).get("_id");
+		}
+		// less than a full batch left: count up to the last accident older than the safety lag
+		dao.getDatabase().getCollection(dao.getCollectionName()).find(range.isEmpty() ? new Document() : new Document("_id", range))
+				.projection(new Document("_id", 1))
+				.sort(new Document("_id", -1))
+				.limit(1)
+				.into(ids);
+		return ids.isEmpty() ? null : ids.get(0).get("_id");
+	}
+
+	/**
+	 * @param from the lower bound, excluded, null for no lower bound
+	 * @param to   the upper bound, included, null to stop at the safety lag
+	 * @return the _id condition of the accidents in the range
+	 */
+	private Document range(Object from, Object to) {
+		Document range = new Document();
+		if (from != null) {
+			range.append("$gt", from);
+		}
+		if (to != null) {
+			range.append("$lte", to);
+		} else if (safetyLagMillis > 0) {
+			range.append("$lt", new ObjectId(new Date(System.currentTimeMillis() - safetyLagMillis), 0, (short) 0, 0));
+		}
+		return range;
+	}
+
+	/**
+	 * Claim the next batch, if the watermark has not been advanced and no batch is being counted
+	 *
+	 * @param from the watermark
+	 * @param to   the _id of the last accident of the batch
+	 * @return true if the batch was claimed
+	 */
+	private boolean claimBatch(Object from, Object to) {
+		Document lease = new Document("from", from).append("to", to)
+				.append("owner", owner).append("expires", System.currentTimeMillis() + LEASE_MILLIS);
+		return collection("totals").updateOne(
+				new Document("_id", TOTALS_ID).append("watermark", from).append("lease", new Document("$exists", false)),
+				new Document("$set", new Document("lease", lease))).getMatchedCount() == 1;
+	}
+
+	/**
+	 * Claim the rollups for a rebuild, if no batch is being counted or its lease has expired:
+	 * the batch is dropped with the counters
+	 *
+	 * @return true if the rollups were claimed
+	 */
+	private boolean claimRebuild() {
+		Document totals = collection("totals").find(new Document("_id", TOTALS_ID)).first();
+		Document current = totals.get("lease", Document.class);
+		if (current != null && ((Number) current.get("expires")).longValue() > System.currentTimeMillis()) {
+			return false;
+		}
+		Document lease = new Document("rebuild", true)
+				.append("owner", owner).append("expires", System.currentTimeMillis() + LEASE_MILLIS);
+		return collection("totals").updateOne(
+				new Document("_id", TOTALS_ID).append("lease", current != null ? current : new Document("$exists", false)),
+				new Document("$set", new Document("lease", lease))).getMatchedCount() == 1;
+	}
+
+	/**
+	 * Take over the expired lease of a batch or a rebuild that another process did not complete
+	 *
+	 * @param lease the expired lease
+	 * @return true if the lease was taken over
+	 */
+	private boolean takeOver(Document lease) {
+		Document renewed = new Document(lease).append("owner", owner).append("expires", System.currentTimeMillis() + LEASE_MILLIS);
+		return collection("totals").updateOne(new Document("_id", TOTALS_ID).append("lease", lease),
+				new Document("$set", new Document("lease", renewed))).getMatchedCount() == 1;
+	}
+
+	/**
+	 * Add the totals of a batch, advance the watermark and release the lease, with a single update
+	 *
+	 * @return false if the lease is no longer held by this process
+	 */
+	private boolean complete(Batch batch, Object to) {
+		Document update = new Document("$inc", new Document("incidenti", (long) batch.size)
+				.append("veicoli", batch.vehicles)
+				.append("persone", batch.people))
+				.append("$set", new Document("watermark", to))
+				.append("$unset", new Document("lease", ""));
+		return collection("totals").updateOne(new Document("_id", TOTALS_ID).append("lease.owner", owner).append("lease.to", to),
+				update).getMatchedCount() == 1;
+	}
+
+	/**
+	 * @return the counters of the accidents in the batch range
+	 */
+	private Batch count(Object from, Object to) {
+		List<Document> pipeline = new ArrayList<>();
+		pipeline.add(new Document("$match", new Document("_id", range(from, to))));
+		pipeline.add(new Document("$project", new Document("anno", 1).append("mese", 1).append("giorno", 1)
+				.append("ora", 1).append("numero_gruppo", 1).append("strada", 1)
+				.append("veicoli", size("veicoli")).append("persone", size("persone"))));
+		Batch batch = new Batch();
+		MongoCollection<Document> accidents = dao.getDatabase().getCollection(dao.getCollectionName());
+		try (MongoCursor<Document> cursor = accidents.aggregate(pipeline).allowDiskUse(true).batchSize(BATCH_SIZE).iterator()) {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next());
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * @return the content of the totals document of empty rollups
+	 */
+	private static Document emptyTotals() {
+		return new Document("incidenti", 0L).append("veicoli", 0L).append("persone", 0L).append("watermark", null);
+	}
+
+	/**
+	 * @return the accidents per day, as {@link MongoDAO#getAccidentsByDay()}
+	 */
+	JsonArray getAccidentsByDay() {
+		JsonArray result = new JsonArray();
+		collection("daily").find().forEach((Block<Document>) d -> {
+			Document id = d.get("_id", Document.class);
+			result.add(new JsonObject()
+					.put("data", id.get("anno") + "-" + id.get("mese") + "-" + id.get("giorno"))
+					.put("count", ((Number) d.get("count")).intValue()));
+		});
+		return result;
+	}
+
+	/**
+	 * @return the accidents, vehicles, people and streets totals, as {@link MongoDAO#getTotals()}
+	 */
+	JsonObject getTotals() {
+		Document totals = collection("totals").find(new Document("_id", TOTALS_ID)).first();
+		JsonObject result = new JsonObject();
+		result.put("incidenti", totals != null ? ((Number) totals.get("incidenti")).longValue() : 0L);
+		result.put("veicoli", totals != null ? ((Number) totals.get("veicoli")).intValue() : 0);
+		result.put("persone", totals != null ? ((Number) totals.get("persone")).intValue() : 0);
+		result.put("strade", (int) collection("streets").count());
+		return result;
+	}
+
+	/**
+	 * @return the accidents per district, as {@link MongoDAO#getDistrictsAccidents(String, String, String, String)}
+	 */
+	JsonArray getDistrictsAccidents(String anno, String mese, String giorno, String ora) {
+		Document matchFilter = new Document();
+		if (anno != null && !anno.isEmpty()) {
+			matchFilter.append("_id.anno", anno);
+		}
+		if (mese != null && !mese.isEmpty()) {
+			matchFilter.append("_id.mese", mese);
+		}
+		if (giorno != null && !giorno.isEmpty()) {
+			matchFilter.append("_id.giorno", giorno);
+		}
+		if (ora != null && !ora.isEmpty()) {
+			matchFilter.append("_id.ora", Integer.valueOf(ora));
+		}
+		List<Document> pipeline = Arrays.asList(
+				new Document("$match", matchFilter),
+				new Document("$group", new Document("_id", "$_id.numero_gruppo")
+						.append("count", new Document("$sum", "$count"))));
+
+		List<Document> districts = new ArrayList<>();
+		collection("districts").aggregate(pipeline).into(districts);
+		long total = 0;
+		for (Document d : districts) {
+			total += ((Number) d.get("count")).longValue();
+		}
+		JsonArray result = new JsonArray();
+		for (Document d : districts) {
+			result.add(new JsonObject()
+					.put("municipio", d.getInteger("_id"))
+					.put("incidenti", ((Number) d.get("count")).intValue())
+					.put("totale", total));
+		}
+		return result;
+	}
+
+	/**
+	 * @param name the rollup name
+	 * @return the rollup collection
+	 */
+	private MongoCollection<Document> collection(String name) {
+		return dao.getDatabase().getCollection(dao.getCollectionName() + "_rollup_" + name);
+	}
+
+	/**
+	 * @param field an array field
+	 * @return an expression evaluating to the number of elements of the field, 0 if it is not an array
+	 */
+	private static Document size(String field) {
+		return new Document("$cond", Arrays.asList(
+				new Document("$isArray", "$" + field), new Document("$size", "$" + field), 0));
+	}
+
+	/**
+	 * Counters of a batch of accidents, written to the rollups with one bulk upsert per collection
+	 */
+	private class Batch {
+		private final Map<Document, Integer> daily = new HashMap<>();
+		private final Map<Document, Integer> districts = new HashMap<>();
+		private final Map<Object, Integer> streets = new HashMap<>();
+		private long vehicles = 0;
+		private long people = 0;
+		private int size = 0;
+
+		private void add(Document d) {
+			Document day = new Document("anno", d.get("anno")).append("mese", d.get("mese")).append("giorno", d.get("giorno"));
+			daily.merge(day, 1, Integer::sum);
+			districts.merge(new Document(day).append("ora", d.get("ora")).append("numero_gruppo", d.get("numero_gruppo")),
+					1, Integer::sum);
+			streets.merge(d.get("strada"), 1, Integer::sum);
+			vehicles += ((Number) d.get("veicoli")).longValue();
+			people += ((Number) d.get("persone")).longValue();
+			size++;
+		}
+
+		/**
+		 * Increment the counters, skipping the ones already incremented by this batch
+		 *
+		 * @param batchId _id of the last accident of the batch
+		 */
+		private void apply(Object batchId) {
+			upsert("daily", daily, batchId);
+			upsert("districts", districts, batchId);
+			upsert("streets", streets, batchId);
+		}
+
+		/**
+		 * The filter only matches the counters not yet incremented by the batch: for the others the upsert
+		 * tries to insert a document with an existing _id, and the duplicate key error is ignored
+		 */
+		private void upsert(String name, Map<?, Integer> counts, Object batchId) {
+			if (counts.isEmpty()) {
+				return;
+			}
+			List<WriteModel<Document>> updates = new ArrayList<>(counts.size());
+			counts.forEach((id, count) -> updates.add(new UpdateOneModel<>(
+					new Document("_id", id).append("batch", new Document("$ne", batchId)),
+					new Document("$inc", new Document("count", count)).append("$set", new Document("batch", batchId)),
+					new UpdateOptions().upsert(true))));
+			try {
+				collection(name).bulkWrite(updates, new BulkWriteOptions().ordered(false));
+			} catch (MongoBulkWriteException e) {
+				for (BulkWriteError error : e.getWriteErrors()) {
+					if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+						throw e;
+					}
+				}
+			}
+		}
+	}
+}
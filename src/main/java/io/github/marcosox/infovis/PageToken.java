@@ -0,0 +1,67 @@
+package io.github.marcosox.infovis;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token of the paginated queries, encoding the _id of the last returned document.
+ * The token is the url safe base64 of the _id type followed by its value,
+ * so that clients can pass it back in a query string but should not build it.
+ */
+class PageToken {
+	private static final char OBJECT_ID = 'o';
+	private static final char STRING = 's';
+	private static final char INTEGER = 'i';
+	private static final char LONG = 'l';
+
+	private PageToken() {
+	}
+
+	/**
+	 * @param id the _id of the last document of a page
+	 * @return the token of the next page
+	 * @throws IllegalArgumentException if the _id type is not supported
+	 */
+	static String encode(Object id) {
+		String value;
+		if (id instanceof ObjectId) {
+			value = OBJECT_ID + ((ObjectId) id).toHexString();
+		} else if (id instanceof String) {
+			value = STRING + (String) id;
+		} else if (id instanceof Integer) {
+			value = INTEGER + id.toString();
+		} else if (id instanceof Long) {
+			value = LONG + id.toString();
+		} else {
+			throw new IllegalArgumentException("unsupported _id type " + (id == null ? null : id.getClass().getName()));
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param token a token returned by {@link #encode(Object)}
+	 * @return the _id encoded in the token
+	 * @throws IllegalArgumentException if the token is not valid
+	 */
+	static Object decode(String token) {
+		String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+		if (value.isEmpty()) {
+			throw new IllegalArgumentException("invalid page token");
+		}
+		String id = value.substring(1);
+		switch (value.charAt(0)) {
+			case OBJECT_ID:
+				return new ObjectId(id);
+			case STRING:
+				return id;
+			case INTEGER:
+				return Integer.valueOf(id);
+			case LONG:
+				return Long.valueOf(id);
+			default:
+				throw new IllegalArgumentException("invalid page token");
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package io.github.marcosox.infovis;
+
+/**
+ * A polygon in geographic coordinates, for point-in-polygon queries on the {@link SpatialIndex}.
+ * The edges are straight lines in latitude and longitude, which is accurate enough for user drawn areas
+ * the size of a city. Polygons crossing the antimeridian are not supported.
+ */
+class Polygon {
+	/**
+	 * Maximum number of vertices of a parsed polygon, as every point inside its bounding box is checked against every edge
+	 */
+	static final int MAX_PARSED_VERTICES = 1000;
+
+	private final double[] lat;
+	private final double[] lon;
+	private final double south;
+	private final double west;
+	private final double north;
+	private final double east;
+
+	/**
+	 * @param lat latitude of each vertex
+	 * @param lon longitude of each vertex
+	 */
+	Polygon(double[] lat, double[] lon) {
+		if (lat.length != lon.length || lat.length < 3) {
+			throw new IllegalArgumentException("a polygon needs at least 3 vertices");
+		}
+		this.lat = lat;
+		this.lon = lon;
+		double s = Double.POSITIVE_INFINITY, w = Double.POSITIVE_INFINITY;
+		double n = Double.NEGATIVE_INFINITY, e = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < lat.length; i++) {
+			if (Double.isNaN(lat[i]) || Double.isNaN(lon[i]) || Math.abs(lat[i]) > 90 || Math.abs(lon[i]) > 180) {
+				throw new IllegalArgumentException("invalid vertex " + lat[i] + "," + lon[i]);
+			}
+			s = Math.min(s, lat[i]);
+			n = Math.max(n, lat[i]);
+			w = Math.min(w, lon[i]);
+			e = Math.max(e, lon[i]);
+		}
+		this.south = s;
+		this.west = w;
+		this.north = n;
+		this.east = e;
+	}
+
+	/**
+	 * @param vertices the vertices as "lat,lon;lat,lon;...", the polygon is closed automatically
+	 * @return the polygon
+	 * @throws IllegalArgumentException if the vertices are not valid, or more than {@link #MAX_PARSED_VERTICES}
+	 */
+	static Polygon parse(String vertices) {
+		long separators = vertices.chars().filter(c -> c == ';').count();
+		if (separators >= MAX_PARSED_VERTICES) {
+			throw new IllegalArgumentException("a polygon can have at most " + MAX_PARSED_VERTICES + " vertices");
+		}
+		String[] points = vertices.trim().split(";");
+		double[] lat = new double[points.length];
+		double[] lon = new double[points.length];
+		for (int i = 0; i < points.length; i++) {
+			String[] values = points[i].split(",");
+			if (values.length != 2) {
+				throw new IllegalArgumentException("invalid vertex " + points[i] + ", expected lat,lon");
+			}
+			lat[i] = Double.parseDouble(values[0].trim());
+			lon[i] = Double.parseDouble(values[1].trim());
+		}
+		return new Polygon(lat, lon);
+	}
+
+	/**
+	 * Even-odd rule: a point is inside if a ray from it crosses the edges an odd number of times
+	 *
+	 * @return true if the point is inside the polygon
+	 */
+	boolean contains(double pointLat, double pointLon) {
+		if (pointLat < south || pointLat > north || pointLon < west || pointLon > east) {
+			return false;
+		}
+		boolean inside = false;
+		for (int i = 0, j = lat.length - 1; i < lat.length; j = i++) {
+			if ((lat[i] > pointLat) != (lat[j] > pointLat)
+					&& pointLon < (lon[j] - lon[i]) * (pointLat - lat[i]) / (lat[j] - lat[i]) + lon[i]) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * @return the vertices as "lat,lon;lat,lon;...", as read by {@link #parse(String)}
+	 */
+	@Override
+	public String toString() {
+		StringBuilder vertices = new StringBuilder();
+		for (int i = 0; i < lat.length; i++) {
+			vertices.append(i > 0 ? ";" : "").append(lat[i]).append(',').append(lon[i]);
+		}
+		return vertices.toString();
+	}
+
+	double getSouth() {
+		return south;
+	}
+
+	double getWest() {
+		return west;
+	}
+
+	double getNorth() {
+		return north;
+	}
+
+	double getEast() {
+		return east;
+	}
+}
@@ -0,0 +1,189 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process LRU cache for query results.
+ * Entries expire after a fixed time to live, and the least recently used entries
+ * are evicted when the cache exceeds its maximum number of entries or its maximum size in bytes.
+ * Every invalidation starts a new generation, and results of queries started in an older generation are not stored,
+ * so a query running while the data changes cannot put its outdated result back in the cache.
+ */
+class ResultCache {
+	private final long ttlMillis;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);    // access order
+	private long currentBytes = 0;
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param ttlMillis  entries time to live in milliseconds, 0 disables the cache
+	 * @param maxEntries maximum number of entries
+	 * @param maxBytes   maximum total size of the entries in bytes
+	 */
+	ResultCache(long ttlMillis, int maxEntries, long maxBytes) {
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Build a cache key from an endpoint name and its parameters.
+	 * The parameters are not normalized here: the caller must pass the same values it passes to the query.
+	 * Each parameter is prefixed with its length, so parameters containing the separator cannot collide.
+	 * Null and empty parameters are considered the same value.
+	 *
+	 * @param endpoint the endpoint name
+	 * @param params   the query parameters
+	 * @return the cache key
+	 */
+	static String key(String endpoint, Object... params) {
+		StringBuilder key = new StringBuilder(endpoint);
+		for (Object param : params) {
+			String value = param == null ? "" : param.toString();
+			key.append('|').append(value.length()).append(':').append(value);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Estimate the size of a query result, close to the length of its compact JSON encoding,
+	 * without encoding it: the result is encoded once, when the response is written
+	 *
+	 * @param value a query result, made of JSON objects, arrays, strings, numbers and booleans
+	 * @return the estimated size in bytes
+	 */
+	static long estimateSize(Object value) {
+		if (value instanceof JsonObject) {
+			long size = 2;
+			for (Map.Entry<String, Object> entry : (JsonObject) value) {
+				size += entry.getKey().length() + 4 + estimateSize(entry.getValue());    // quotes, colon and comma
+			}
+			return size;
+		}
+		if (value instanceof JsonArray) {
+			long size = 2;
+			for (Object item : (JsonArray) value) {
+				size += estimateSize(item) + 1;
+			}
+			return size;
+		}
+		if (value instanceof CharSequence) {
+			return ((CharSequence) value).length() + 2;
+		}
+		if (value instanceof Number) {
+			return 8;
+		}
+		return value instanceof Boolean ? 5 : 4;
+	}
+
+	/**
+	 * @return true if the cache stores anything at all
+	 */
+	boolean isEnabled() {
+		return ttlMillis > 0 && maxEntries > 0 && maxBytes > 0;
+	}
+
+	/**
+	 * @param key the entry key
+	 * @return the cached value, or null if missing or expired
+	 */
+	synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expiration < System.currentTimeMillis()) {
+			remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * @return the current generation, to read before running a query whose result will be stored
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Store a value, evicting the least recently used entries if needed
+	 *
+	 * @param key        the entry key
+	 * @param value      the value to store
+	 * @param size       the value size in bytes
+	 * @param generation the generation when the query producing the value started,
+	 *                   the value is dropped if the cache has been invalidated since then
+	 */
+	synchronized void put(String key, Object value, long size, long generation) {
+		if (!isEnabled() || size > maxBytes || generation != this.generation) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(value, size, System.currentTimeMillis() + ttlMillis));
+		currentBytes += size;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || currentBytes > maxBytes) && eldest.hasNext()) {
+			currentBytes -= eldest.next().getValue().size;
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove all the entries
+	 */
+	synchronized void invalidate() {
+		generation++;
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	/**
+	 * @return cache statistics
+	 */
+	synchronized JsonObject stats() {
+		return new JsonObject()
+				.put("entries", entries.size())
+				.put("bytes", currentBytes)
+				.put("hits", hits.get())
+				.put("misses", misses.get())
+				.put("evictions", evictions.get())
+				.put("maxEntries", maxEntries)
+				.put("maxBytes", maxBytes)
+				.put("ttlMillis", ttlMillis);
+	}
+
+	private void remove(String key) {
+		Entry removed = entries.remove(key);
+		if (removed != null) {
+			currentBytes -= removed.size;
+		}
+	}
+
+	private static class Entry {
+		private final Object value;
+		private final long size;
+		private final long expiration;
+
+		private Entry(Object value, long size, long expiration) {
+			this.value = value;
+			this.size = size;
+			this.expiration = expiration;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.function.Supplier;
+
+/**
+ * Resources shared by all the {@link MainVerticle} instances of a Vert.x instance:
+ * the data access layer, with its MongoDB connection pool, in-memory engine and result cache,
+ * the metrics, the in-flight requests, the pre-encoded responses and the admission control.
+ * The resources are created by the first verticle that acquires them, and closed when the last one releases them.
+ */
+class SharedResources implements Shareable {
+	private static final String MAP_NAME = SharedResources.class.getName();
+	private static final String KEY = "resources";
+
+	private final AsyncMongoDAO dao;
+	private final Metrics metrics;
+	private final EncodedResponses encodedResponses;
+	private final AdmissionControl admissionControl;
+	private final SingleFlight singleFlight = new SingleFlight();
+	private int references = 0;
+
+	SharedResources(AsyncMongoDAO dao, Metrics metrics, EncodedResponses encodedResponses, AdmissionControl admissionControl) {
+		this.dao = dao;
+		this.metrics = metrics;
+		this.encodedResponses = encodedResponses;
+		this.admissionControl = admissionControl;
+	}
+
+	/**
+	 * Get the shared resources, creating them if needed
+	 *
+	 * @param vertx   the Vert.x instance
+	 * @param factory creates the resources, only called by the first verticle
+	 * @return the shared resources
+	 */
+	static synchronized SharedResources acquire(Vertx vertx, Supplier<SharedResources> factory) {
+		LocalMap<String, SharedResources> map = vertx.sharedData().getLocalMap(MAP_NAME);
+		SharedResources resources = map.get(KEY);
+		if (resources == null) {
+			resources = factory.get();
+			map.put(KEY, resources);
+		}
+		resources.references++;
+		return resources;
+	}
+
+	/**
+	 * Release the resources, closing them if no other verticle is using them
+	 *
+	 * @param vertx the Vert.x instance
+	 */
+	void release(Vertx vertx) {
+		synchronized (SharedResources.class) {
+			if (--references == 0) {
+				vertx.sharedData().getLocalMap(MAP_NAME).remove(KEY);
+				dao.close();
+			}
+		}
+	}
+
+	AsyncMongoDAO getDao() {
+		return dao;
+	}
+
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	EncodedResponses getEncodedResponses() {
+		return encodedResponses;
+	}
+
+	AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+}
@@ -0,0 +1,62 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplication of identical concurrent computations.
+ * While a computation with a given key is running, other requests for the same key do not start a new one,
+ * and receive the result of the running computation instead.
+ * Once the computation completes the key is released, so later requests start a new computation
+ * (or are answered by the result cache).
+ * It can be shared by verticles on different event loops: every caller is notified on its own context.
+ */
+class SingleFlight {
+	private final Map<String, Future<Object>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Run a computation, or join the running one with the same key
+	 *
+	 * @param vertx       the Vert.x instance
+	 * @param key         identifies the computation, the same key must always produce the same result
+	 * @param computation starts the computation on the caller context, and completes the promise with its result
+	 * @param handler     result handler, called back on the caller context
+	 * @return true if a running computation was joined, false if a new one was started
+	 */
+	@SuppressWarnings("unchecked")
+	<T> boolean execute(Vertx vertx, String key, Handler<Promise<T>> computation, Handler<AsyncResult<T>> handler) {
+		Context caller = vertx.getOrCreateContext();
+		Promise<Object> promise = Promise.promise();
+		Future<Object> running = pending.putIfAbsent(key, promise.future());
+		if (running != null) {
+			running.onComplete(result -> caller.runOnContext(v -> handler.handle((AsyncResult<T>) (AsyncResult<?>) result)));
+			return true;
+		}
+		promise.future().onComplete(result -> caller.runOnContext(v -> handler.handle((AsyncResult<T>) (AsyncResult<?>) result)));
+		Promise<T> computed = Promise.promise();
+		computed.future().onComplete(result -> {
+			pending.remove(key);    // released before notifying, the waiters already hold the future
+			promise.handle((AsyncResult<Object>) (AsyncResult<?>) result);
+		});
+		try {
+			computation.handle(computed);
+		} catch (RuntimeException e) {
+			computed.tryFail(e);
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of computations running
+	 */
+	int size() {
+		return pending.size();
+	}
+}
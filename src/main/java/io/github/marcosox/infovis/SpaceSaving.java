@@ -0,0 +1,162 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpaceSaving heavy hitters counter: keeps a fixed number of counters, and when a new value arrives
+ * with all the counters in use it replaces the value with the lowest count, inheriting that count as its error.
+ * Every value counted more than {@code total / capacity} times is kept, and the count of a kept value
+ * overestimates its true count by at most its error, itself at most {@code total / capacity}.
+ * The counters are a min-heap on the count, so every update takes O(log capacity).
+ * The top values are only certainly the most frequent ones when the distribution is skewed enough,
+ * see {@link #isGuaranteed(int)}: with a uniform distribution all the counters can be wrong.
+ */
+class SpaceSaving {
+	private final Object[] values;
+	private final long[] counts;
+	private final long[] errors;
+	private final Map<Object, Integer> positions;
+	private int size = 0;
+	private long total = 0;
+	private boolean evicted = false;
+
+	/**
+	 * @param capacity number of counters
+	 */
+	SpaceSaving(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("the capacity must be positive");
+		}
+		this.values = new Object[capacity];
+		this.counts = new long[capacity];
+		this.errors = new long[capacity];
+		this.positions = new HashMap<>(capacity * 2);
+	}
+
+	/**
+	 * @param value the value to count, may be null
+	 */
+	void add(Object value) {
+		total++;
+		Integer position = positions.get(value);
+		if (position != null) {
+			counts[position]++;
+			siftDown(position);
+		} else if (size < values.length) {
+			set(size, value, 1, 0);
+			siftUp(size++);
+		} else {
+			positions.remove(values[0]);    // evict the least counted value
+			evicted = true;
+			set(0, value, counts[0] + 1, counts[0]);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * @return number of values counted
+	 */
+	long total() {
+		return total;
+	}
+
+	/**
+	 * @return number of counters
+	 */
+	int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @param limit maximum number of values returned, ignored if not positive
+	 * @return objects {_id,count,error} sorted by descending count, where count is an upper bound
+	 * of the true count and count - error a lower bound
+	 */
+	JsonArray top(int limit) {
+		List<Integer> order = order();
+		JsonArray result = new JsonArray();
+		for (int i : limit > 0 && limit < size ? order.subList(0, limit) : order) {
+			result.add(new JsonObject().put("_id", values[i]).put("count", counts[i]).put("error", errors[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @param limit number of top values, ignored if not positive
+	 * @return true if the values returned by {@link #top(int)} are certainly the most frequent ones:
+	 * the lower bound of the count of each one is at least the upper bound of the count of every other value,
+	 * counted or evicted
+	 */
+	boolean isGuaranteed(int limit) {
+		List<Integer> order = order();
+		int top = limit > 0 && limit < size ? limit : size;
+		long bound = evicted ? counts[0] : 0;    // an evicted value was counted at most as the least counted value
+		if (top < size) {
+			bound = Math.max(bound, counts[order.get(top)]);
+		}
+		for (int i = 0; i < top; i++) {
+			int position = order.get(i);
+			if (counts[position] - errors[position] < bound) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the counter positions sorted by descending count
+	 */
+	private List<Integer> order() {
+		List<Integer> order = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparingLong((Integer i) -> counts[i]).reversed());
+		return order;
+	}
+
+	private void set(int position, Object value, long count, long error) {
+		values[position] = value;
+		counts[position] = count;
+		errors[position] = error;
+		positions.put(value, position);
+	}
+
+	private void swap(int a, int b) {
+		Object value = values[a];
+		long count = counts[a];
+		long error = errors[a];
+		set(a, values[b], counts[b], errors[b]);
+		set(b, value, count, error);
+	}
+
+	private void siftUp(int position) {
+		while (position > 0 && counts[(position - 1) / 2] > counts[position]) {
+			swap(position, (position - 1) / 2);
+			position = (position - 1) / 2;
+		}
+	}
+
+	private void siftDown(int position) {
+		while (true) {
+			int smallest = position;
+			for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++) {
+				if (counts[child] < counts[smallest]) {
+					smallest = child;
+				}
+			}
+			if (smallest == position) {
+				return;
+			}
+			swap(position, smallest);
+			position = smallest;
+		}
+	}
+}
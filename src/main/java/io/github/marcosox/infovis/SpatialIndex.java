@@ -0,0 +1,283 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Spatial index of the geocoded accidents.
+ * Points are sorted by the quadkey (Morton code) of their web mercator position at {@link #MAX_ZOOM},
+ * so that every map tile, at every zoom level, is a contiguous range of the sorted points
+ * and is found with two binary searches.
+ * A bounding box is covered with a few tiles at the zoom level matching its size,
+ * so viewport and polygon queries only read the points of those tiles.
+ */
+class SpatialIndex {
+	/**
+	 * Zoom level of the quadkeys, 31 bits per axis
+	 */
+	static final int MAX_ZOOM = 31;
+	/**
+	 * Maximum number of cluster cells per tile side, as a power of 2
+	 */
+	static final int MAX_RESOLUTION = 6;
+	/**
+	 * Maximum number of tiles covering a bounding box
+	 */
+	private static final int MAX_BOX_TILES = 16;
+
+	private final long[] keys;    // sorted quadkeys
+	private final int[] rows;     // row of each sorted quadkey
+	private final double[] lat;   // row coordinates
+	private final double[] lon;
+
+	/**
+	 * @param lat latitude of each row, NaN if the row is not geocoded
+	 * @param lon longitude of each row, NaN if the row is not geocoded
+	 */
+	SpatialIndex(double[] lat, double[] lon) {
+		this.lat = lat;
+		this.lon = lon;
+		long[] rowKeys = new long[lat.length];
+		for (int row = 0; row < lat.length; row++) {
+			rowKeys[row] = Double.isNaN(lat[row]) || Double.isNaN(lon[row]) ? -1 : quadkey(lat[row], lon[row]);
+		}
+		this.rows = IntStream.range(0, lat.length)
+				.filter(row -> rowKeys[row] >= 0)
+				.boxed()
+				.sorted((a, b) -> Long.compare(rowKeys[a], rowKeys[b]))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		this.keys = new long[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			keys[i] = rowKeys[rows[i]];
+		}
+	}
+
+	private SpatialIndex(long[] keys, int[] rows, double[] lat, double[] lon) {
+		this.keys = keys;
+		this.rows = rows;
+		this.lat = lat;
+		this.lon = lon;
+	}
+
+	/**
+	 * Read an index written by {@link #write(DataOutputStream)}
+	 *
+	 * @param in the snapshot buffer, positioned at the start of the index
+	 * @return the index
+	 * @throws IOException if the buffer does not contain a valid index
+	 */
+	static SpatialIndex read(ByteBuffer in) throws IOException {
+		long[] keys = IndexSnapshot.readLongs(in);
+		int[] rows = IndexSnapshot.readInts(in);
+		double[] lat = IndexSnapshot.readDoubles(in);
+		double[] lon = IndexSnapshot.readDoubles(in);
+		if (keys.length != rows.length || lat.length != lon.length) {
+			throw new IOException("corrupted spatial index");
+		}
+		return new SpatialIndex(keys, rows, lat, lon);
+	}
+
+	/**
+	 * Write the index to a snapshot
+	 *
+	 * @param out the snapshot stream
+	 * @throws IOException if the index cannot be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		IndexSnapshot.writeLongs(out, keys);
+		IndexSnapshot.writeInts(out, rows, rows.length);
+		IndexSnapshot.writeDoubles(out, lat);
+		IndexSnapshot.writeDoubles(out, lon);
+	}
+
+	/**
+	 * @return number of geocoded points
+	 */
+	int size() {
+		return rows.length;
+	}
+
+	/**
+	 * Aggregate the points of a map tile into a grid of clusters
+	 *
+	 * @param z          tile zoom level
+	 * @param x          tile column
+	 * @param y          tile row
+	 * @param resolution the tile is divided in 2^resolution x 2^resolution cells
+	 * @param filter     rows to include, null for all rows
+	 * @param ids        accident ids column, to report the id of single point clusters
+	 * @return an object with the tile coordinates, the number of points and an array of clusters {lat,lon,count},
+	 * where the position is the mean of the cluster points
+	 */
+	JsonObject getTile(int z, int x, int y, int resolution, RoaringBitmap filter, DictionaryColumn ids) {
+		if (z < 0 || z + resolution > MAX_ZOOM || resolution < 0 || resolution > MAX_RESOLUTION
+				|| x < 0 || y < 0 || x >= (1L << z) || y >= (1L << z)) {
+			throw new IllegalArgumentException("invalid tile " + z + "/" + x + "/" + y + " at resolution " + resolution);
+		}
+		int cells = 1 << (2 * resolution);
+		int[] counts = new int[cells];
+		int[] firstRow = new int[cells];
+		double[] sumLat = new double[cells];
+		double[] sumLon = new double[cells];
+
+		int cellShift = 2 * (MAX_ZOOM - z - resolution);
+		long tileKey = interleave(x, y);
+		int from = lowerBound(tileKey << (2 * (MAX_ZOOM - z)));
+		int to = lowerBound((tileKey + 1) << (2 * (MAX_ZOOM - z)));
+		int total = 0;
+		for (int i = from; i < to; i++) {
+			int row = rows[i];
+			if (filter != null && !filter.contains(row)) {
+				continue;
+			}
+			int cell = (int) ((keys[i] >>> cellShift) & (cells - 1));
+			if (counts[cell] == 0) {
+				firstRow[cell] = row;
+			}
+			counts[cell]++;
+			sumLat[cell] += lat[row];
+			sumLon[cell] += lon[row];
+			total++;
+		}
+
+		JsonArray clusters = new JsonArray();
+		for (int cell = 0; cell < cells; cell++) {
+			if (counts[cell] > 0) {
+				JsonObject cluster = new JsonObject()
+						.put("lat", sumLat[cell] / counts[cell])
+						.put("lon", sumLon[cell] / counts[cell])
+						.put("count", counts[cell]);
+				if (counts[cell] == 1) {
+					cluster.put("protocollo", ids.value(ids.code(firstRow[cell])));
+				}
+				clusters.add(cluster);
+			}
+		}
+		return new JsonObject()
+				.put("z", z)
+				.put("x", x)
+				.put("y", y)
+				.put("count", total)
+				.put("clusters", clusters);
+	}
+
+	/**
+	 * Visit the points inside a bounding box, borders included
+	 *
+	 * @param south   minimum latitude
+	 * @param west    minimum longitude
+	 * @param north   maximum latitude
+	 * @param east    maximum longitude
+	 * @param filter  rows to include, null for all rows
+	 * @param visitor receives the row of each point, returns false to stop
+	 */
+	void forEachInBox(double south, double west, double north, double east, RoaringBitmap filter, IntPredicate visitor) {
+		if (!(south <= north && west <= east)) {    // also false for NaN
+			throw new IllegalArgumentException("invalid bounding box " + south + "," + west + "," + north + "," + east);
+		}
+		long scale = 1L << MAX_ZOOM;
+		long x0 = tile(mercatorX(west), scale), x1 = tile(mercatorX(east), scale);
+		long y0 = tile(mercatorY(north), scale), y1 = tile(mercatorY(south), scale);    // tile rows grow southwards
+		int z = MAX_ZOOM;
+		while ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_BOX_TILES) {    // the smallest tiles covering the box with a few ranges
+			x0 >>= 1;
+			x1 >>= 1;
+			y0 >>= 1;
+			y1 >>= 1;
+			z--;
+		}
+		int shift = 2 * (MAX_ZOOM - z);
+		for (long y = y0; y <= y1; y++) {
+			for (long x = x0; x <= x1; x++) {
+				long tileKey = interleave(x, y);
+				int to = lowerBound((tileKey + 1) << shift);
+				for (int i = lowerBound(tileKey << shift); i < to; i++) {
+					int row = rows[i];
+					if ((filter == null || filter.contains(row))
+							&& lat[row] >= south && lat[row] <= north && lon[row] >= west && lon[row] <= east
+							&& !visitor.test(row)) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visit the points inside a polygon, reading only the points inside its bounding box
+	 *
+	 * @param polygon the polygon
+	 * @param filter  rows to include, null for all rows
+	 * @param visitor receives the row of each point, returns false to stop
+	 */
+	void forEachInPolygon(Polygon polygon, RoaringBitmap filter, IntPredicate visitor) {
+		forEachInBox(polygon.getSouth(), polygon.getWest(), polygon.getNorth(), polygon.getEast(), filter,
+				row -> !polygon.contains(lat[row], lon[row]) || visitor.test(row));
+	}
+
+	/**
+	 * @return position of the first quadkey greater or equal to the given key
+	 */
+	private int lowerBound(long key) {
+		int index = Arrays.binarySearch(keys, key);
+		if (index < 0) {
+			return -index - 1;
+		}
+		while (index > 0 && keys[index - 1] == key) {
+			index--;
+		}
+		return index;
+	}
+
+	/**
+	 * @param lat latitude
+	 * @param lon longitude
+	 * @return the quadkey of the web mercator tile containing the point at {@link #MAX_ZOOM}
+	 */
+	static long quadkey(double lat, double lon) {
+		long scale = 1L << MAX_ZOOM;
+		return interleave(tile(mercatorX(lon), scale), tile(mercatorY(lat), scale));
+	}
+
+	/**
+	 * @return the web mercator x of a longitude, from 0 (west) to 1 (east)
+	 */
+	private static double mercatorX(double lon) {
+		return (lon + 180) / 360;
+	}
+
+	/**
+	 * @return the web mercator y of a latitude, from 0 (north) to 1 (south)
+	 */
+	private static double mercatorY(double lat) {
+		double latRad = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, lat)));
+		return (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2;
+	}
+
+	/**
+	 * @return the tile containing a web mercator coordinate, with scale tiles per side
+	 */
+	private static long tile(double coordinate, long scale) {
+		return Math.min(scale - 1, Math.max(0, (long) (coordinate * scale)));
+	}
+
+	/**
+	 * @return the Morton code of the tile coordinates, y bits first
+	 */
+	private static long interleave(long x, long y) {
+		long key = 0;
+		for (int bit = MAX_ZOOM - 1; bit >= 0; bit--) {
+			key = (key << 2) | (((y >>> bit) & 1) << 1) | ((x >>> bit) & 1);
+		}
+		return key;
+	}
+}
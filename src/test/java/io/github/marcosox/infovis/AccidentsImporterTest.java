@@ -0,0 +1,136 @@
+package io.github.marcosox.infovis;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccidentsImporterTest {
+
+	@Test
+	public void splitCsvSeparatesValues() {
+		assertEquals(Arrays.asList("a", "b", "", "c"), AccidentsImporter.splitCsv("a,b,,c", ','));
+		assertEquals(Arrays.asList("a,b", "c"), AccidentsImporter.splitCsv("a,b;c", ';'));
+		assertEquals(Arrays.asList("", ""), AccidentsImporter.splitCsv(",", ','));
+	}
+
+	@Test
+	public void splitCsvUnquotesValues() {
+		assertEquals(Arrays.asList("via Roma, 1", "x"), AccidentsImporter.splitCsv("\"via Roma, 1\",x", ','));
+		assertEquals(Arrays.asList("detto \"il\" nome", ""), AccidentsImporter.splitCsv("\"detto \"\"il\"\" nome\",", ','));
+		assertEquals(Collections.singletonList("riga\nsuccessiva"), AccidentsImporter.splitCsv("\"riga\nsuccessiva\"", ','));
+	}
+
+	@Test
+	public void normalizeConvertsTypes() {
+		Document accident = AccidentsImporter.normalize(new Document("_id", "old")
+				.append("incidente", " 123 ")
+				.append("lat", "41,9")
+				.append("lon", 12.5)
+				.append("ora", "7.0")
+				.append("numero_gruppo", "3")
+				.append("anno", 2014)
+				.append("mese", "5")
+				.append("giorno", "1"));
+		assertFalse(accident.containsKey("_id"));
+		assertEquals("123", accident.get("incidente"));
+		assertEquals(41.9, accident.get("lat"));
+		assertEquals(12.5, accident.get("lon"));
+		assertEquals(7, accident.get("ora"));
+		assertEquals(3, accident.get("numero_gruppo"));
+		assertEquals("2014", accident.get("anno"));
+		assertEquals("05", accident.get("mese"));
+		assertEquals("01", accident.get("giorno"));
+	}
+
+	@Test
+	public void normalizeReadsTheDateTime() {
+		Document dayFirst = AccidentsImporter.normalize(new Document("incidente", "1").append("data_ora", "3/12/2015 18:30"));
+		assertEquals("2015", dayFirst.get("anno"));
+		assertEquals("12", dayFirst.get("mese"));
+		assertEquals("03", dayFirst.get("giorno"));
+		assertEquals(18, dayFirst.get("ora"));
+		assertFalse(dayFirst.containsKey("data_ora"));
+
+		Document yearFirst = AccidentsImporter.normalize(new Document("incidente", "1").append("data_ora", "2016-01-09T08.05")
+				.append("ora", "9"));
+		assertEquals("2016", yearFirst.get("anno"));
+		assertEquals("01", yearFirst.get("mese"));
+		assertEquals("09", yearFirst.get("giorno"));
+		assertEquals(9, yearFirst.get("ora"));    // an explicit field wins over the date and time
+	}
+
+	@Test
+	public void normalizeDropsInvalidValues() {
+		Document accident = AccidentsImporter.normalize(new Document("incidente", "1")
+				.append("lat", "n/a").append("ora", "sera").append("anno", ""));
+		assertFalse(accident.containsKey("lat"));
+		assertFalse(accident.containsKey("ora"));
+		assertFalse(accident.containsKey("anno"));
+	}
+
+	@Test
+	public void normalizeRejectsAccidentsWithoutId() {
+		assertNull(AccidentsImporter.normalize(new Document("anno", "2014")));
+		assertNull(AccidentsImporter.normalize(new Document("incidente", " ")));
+		assertNull(AccidentsImporter.parse("not json"));
+	}
+
+	@Test
+	public void parseGroupsTheRowsOfAnAccident() {
+		List<String> header = AccidentsImporter.header(
+				"Protocollo;Gruppo;STRADA1;Progressivo;TipoVeicolo;TipoPersona;Sesso", ';');
+		Document accident = AccidentsImporter.parse(Arrays.asList(
+				"7;2;VIA APPIA;1;Autovettura;Conducente;M",
+				"7;2;VIA APPIA;1;Autovettura;Passeggero;F",
+				"7;2;;2;Motociclo;Conducente;M"), header, ';');
+		assertEquals("7", accident.get("incidente"));
+		assertEquals(2, accident.get("numero_gruppo"));
+		assertEquals("VIA APPIA", accident.get("strada"));
+		assertEquals(Arrays.asList(
+				new Document("progressivo", "1").append("tipo", "Autovettura"),
+				new Document("progressivo", "2").append("tipo", "Motociclo")), accident.get("veicoli"));
+		assertEquals(Arrays.asList(
+				new Document("tipo", "Conducente").append("sesso", "M"),
+				new Document("tipo", "Passeggero").append("sesso", "F"),
+				new Document("tipo", "Conducente").append("sesso", "M")), accident.get("persone"));
+	}
+
+	@Test
+	public void parseKeepsAccidentsWithoutArrays() {
+		List<String> header = AccidentsImporter.header("incidente,anno", ',');
+		Document accident = AccidentsImporter.parse(Collections.singletonList("9,2014"), header, ',');
+		assertEquals(new Document("incidente", "9").append("anno", "2014"), accident);
+	}
+
+	@Test
+	public void batchesKeepTheRowsOfAnAccidentTogether() {
+		AccidentsImporter.Batches batches = new AccidentsImporter.Batches(2);
+		assertNull(batches.add("1", "1a"));
+		assertNull(batches.add("2", "2a"));
+		assertNull(batches.add("1", "1b"));    // not consecutive, still in the batch of accident 1
+		assertEquals(Arrays.asList(Arrays.asList("1a", "1b"), Collections.singletonList("2a")), batches.add("3", "3a"));
+		assertNull(batches.add("3", "3b"));
+		assertEquals(Collections.singletonList(Arrays.asList("3a", "3b")), batches.add(null, "no id"));
+		assertEquals(Collections.singletonList(Collections.singletonList("no id")), batches.take());
+		assertTrue(batches.getRepeated().isEmpty());
+	}
+
+	@Test
+	public void batchesSetApartTheRowsOfSubmittedAccidents() {
+		AccidentsImporter.Batches batches = new AccidentsImporter.Batches(1);
+		assertNull(batches.add("1", "1a"));
+		assertEquals(Collections.singletonList(Collections.singletonList("1a")), batches.add("2", "2a"));
+		assertNull(batches.add("1", "1b"));
+		assertNull(batches.add("1", "1c"));
+		assertEquals(Collections.singletonList(Collections.singletonList("2a")), batches.take());
+		assertEquals(Collections.singletonMap("1", Arrays.asList("1b", "1c")), batches.getRepeated());
+	}
+}
@@ -0,0 +1,95 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The expected results are the ones of the MongoDAO aggregations on the same documents
+ */
+public class AccidentsIndexTest {
+	private AccidentsIndex index;
+
+	private static Document accident(String anno, String mese, int ora, int district, String strada) {
+		return new Document("anno", anno).append("mese", mese).append("giorno", "01").append("ora", ora)
+				.append("numero_gruppo", district).append("strada", strada).append("lat", 41.9).append("lon", 12.5)
+				.append("incidente", anno + mese + ora + district + strada);
+	}
+
+	private static JsonObject count(Object value, int count) {
+		return new JsonObject().put("_id", value).put("count", count);
+	}
+
+	private static JsonObject highlight(String value, int count, int highlight) {
+		return new JsonObject().put("_id", value).put("count", count).put("highlight", highlight);
+	}
+
+	@Before
+	public void build() {
+		index = new AccidentsIndex();
+		index.add(accident("2014", "01", 8, 1, "VIA APPIA"));
+		index.add(accident("2014", "02", 8, 1, "VIA APPIA"));
+		index.add(accident("2015", "01", 9, 2, "VIA APPIA"));
+		index.add(accident("2015", "01", 8, 2, "VIA SALARIA"));
+		index.add(accident("2015", "03", 18, 1, "VIA CASSIA"));
+		index.add(accident("2015", "01", 18, 2, "VIA SALARIA"));
+		index.build();
+	}
+
+	@Test
+	public void bitmapsOnlyOnTheFilterFields() {
+		assertTrue(index.hasBitmaps(null));
+		assertTrue(index.hasBitmaps("numero_gruppo"));
+		assertFalse(index.hasBitmaps("strada"));
+		assertFalse(index.hasBitmaps("missing"));
+	}
+
+	@Test
+	public void countsAFieldAsGetCount() {
+		assertEquals(new JsonArray().add(count("2015", 4)).add(count("2014", 2)), index.getCount(null, 0));
+		assertEquals(new JsonArray().add(count("VIA APPIA", 3)).add(count("VIA SALARIA", 2)), index.getCount("strada", 2));
+	}
+
+	@Test
+	public void highlightsWithAndWithoutBitmaps() {
+		// the counts of the bitmap intersections and of the scan of the highlighted rows are the same
+		assertEquals(new JsonArray().add(highlight("01", 1, 3)).add(highlight("02", 1, 0)).add(highlight("03", 0, 1)),
+				index.getAggregateCount("mese", 0, "anno", "2015", true));
+		assertEquals(new JsonArray().add(highlight("VIA APPIA", 2, 1)).add(highlight("VIA SALARIA", 0, 2))
+						.add(highlight("VIA CASSIA", 0, 1)),
+				index.getAggregateCount("strada", 0, "anno", "2015", true));
+		assertEquals(new JsonArray().add(highlight("2014", 0, 2)).add(highlight("2015", 0, 4)),
+				index.getAggregateCount("anno", 0, null, null, false));
+	}
+
+	@Test
+	public void countsFacetsOfTheFilteredAccidents() {
+		Map<String, Object> filter = new LinkedHashMap<>();
+		filter.put("anno", "2015");
+		filter.put("ora", null);
+		JsonObject facets = index.getFacets(filter, Arrays.asList("numero_gruppo", "strada"), 1);
+		assertEquals(4, (int) facets.getInteger("total"));
+		assertEquals(new JsonArray().add(count(2, 3)), facets.getJsonObject("facets").getJsonArray("numero_gruppo"));
+		assertEquals(new JsonArray().add(count("VIA SALARIA", 2)), facets.getJsonObject("facets").getJsonArray("strada"));
+		assertEquals(3, index.countDistinct("strada", filter));
+		filter.put("ora", 8);
+		assertEquals(1, index.countDistinct("strada", filter));
+		assertEquals(3, index.countDistinct("strada", new LinkedHashMap<>()));
+	}
+
+	@Test
+	public void countsTheAccidentsOfEachDistrict() {
+		JsonArray districts = index.getDistrictsAccidents("2015", null, null, "8");
+		assertEquals(new JsonArray().add(new JsonObject().put("municipio", 2).put("incidenti", 1).put("totale", 1)), districts);
+	}
+}
@@ -0,0 +1,91 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+	private Vertx vertx;
+
+	@Before
+	public void setUp() {
+		vertx = Vertx.vertx();
+	}
+
+	@After
+	public void tearDown() {
+		vertx.close();
+	}
+
+	@Test
+	public void queuesAndRejectsOverTheLimit() throws Exception {
+		AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(1, 1);
+		Context context = vertx.getOrCreateContext();
+		AtomicBoolean first = new AtomicBoolean();
+		CountDownLatch second = new CountDownLatch(1);
+		AtomicBoolean third = new AtomicBoolean();
+		assertTrue(limiter.acquire(context, v -> first.set(true)));
+		assertTrue(first.get());
+		assertTrue(limiter.acquire(context, v -> second.countDown()));
+		assertFalse(limiter.acquire(context, v -> third.set(true)));
+		assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+		limiter.release();
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+		assertFalse(third.get());
+	}
+
+	@Test
+	public void handsTheSlotOverOnRelease() throws Exception {
+		AdmissionControl.Limiter limiter = new AdmissionControl.Limiter(1, 1);
+		Context context = vertx.getOrCreateContext();
+		CountDownLatch queued = new CountDownLatch(1);
+		assertTrue(limiter.acquire(context, v -> {
+		}));
+		assertTrue(limiter.acquire(context, v -> queued.countDown()));
+		limiter.release();
+		assertTrue(queued.await(5, TimeUnit.SECONDS));
+		// the queued request holds the slot, so the next one waits
+		CountDownLatch next = new CountDownLatch(1);
+		assertTrue(limiter.acquire(context, v -> next.countDown()));
+		assertFalse(next.await(100, TimeUnit.MILLISECONDS));
+		limiter.release();
+		assertTrue(next.await(5, TimeUnit.SECONDS));
+		// with no queued request the slot is freed
+		limiter.release();
+		AtomicBoolean free = new AtomicBoolean();
+		assertTrue(limiter.acquire(context, v -> free.set(true)));
+		assertTrue(free.get());
+	}
+
+	@Test
+	public void readsTheRouteLimits() {
+		AdmissionControl admission = new AdmissionControl(new JsonObject()
+				.put("default", new JsonObject().put("maxConcurrent", 2).put("maxQueue", 0))
+				.put("/GetGeocodedAccidents", new JsonObject().put("maxConcurrent", 1)));
+		Context context = vertx.getOrCreateContext();
+		AdmissionControl.Limiter limiter = admission.get("/GetGeocodedAccidents");
+		assertSame(limiter, admission.get("/GetGeocodedAccidents"));
+		assertTrue(limiter.acquire(context, v -> {
+		}));
+		assertFalse(limiter.acquire(context, v -> {
+		}));
+		AdmissionControl.Limiter other = admission.get("/GetCount");
+		assertTrue(other.acquire(context, v -> {
+		}));
+		assertTrue(other.acquire(context, v -> {
+		}));
+		assertFalse(other.acquire(context, v -> {
+		}));
+	}
+}
@@ -0,0 +1,72 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DistrictsTest {
+
+	/**
+	 * @return a GeoJSON ring of a rectangle, as [lon, lat] positions
+	 */
+	private static JsonArray rectangle(double south, double west, double north, double east) {
+		return new JsonArray()
+				.add(new JsonArray().add(west).add(south))
+				.add(new JsonArray().add(east).add(south))
+				.add(new JsonArray().add(east).add(north))
+				.add(new JsonArray().add(west).add(north))
+				.add(new JsonArray().add(west).add(south));
+	}
+
+	@Test
+	public void locatesPointsInFeatures() {
+		JsonObject first = new JsonObject().put("type", "Feature")
+				.put("properties", new JsonObject().put("municipio", "1"))
+				.put("geometry", new JsonObject().put("type", "Polygon")
+						.put("coordinates", new JsonArray().add(rectangle(41.8, 12.4, 41.9, 12.5)).add(rectangle(41.84, 12.44, 41.86, 12.46))));
+		JsonObject second = new JsonObject().put("numero_gruppo", 2)
+				.put("geometry", new JsonObject().put("type", "MultiPolygon")
+						.put("coordinates", new JsonArray()
+								.add(new JsonArray().add(rectangle(41.9, 12.4, 42.0, 12.5)))
+								.add(new JsonArray().add(rectangle(41.84, 12.44, 41.86, 12.46)))));
+		Districts districts = new Districts(new JsonArray().add(first).add(second));
+		assertEquals(3, districts.size());
+		assertEquals(Integer.valueOf(1), districts.locate(41.81, 12.41));
+		assertEquals(Integer.valueOf(2), districts.locate(41.95, 12.45));
+		assertEquals(Integer.valueOf(2), districts.locate(41.85, 12.45));    // in the hole of the first district
+		assertNull(districts.locate(41.5, 12.45));
+	}
+
+	@Test
+	public void readsFeatureCollections() {
+		JsonObject feature = new JsonObject().put("properties", new JsonObject().put("numero", 5))
+				.put("geometry", new JsonObject().put("type", "Polygon").put("coordinates", new JsonArray().add(rectangle(0, 0, 1, 1))));
+		Districts districts = new Districts(new JsonArray().add(new JsonObject().put("type", "FeatureCollection")
+				.put("features", new JsonArray().add(feature))));
+		assertEquals(Integer.valueOf(5), districts.locate(0.5, 0.5));
+	}
+
+	@Test
+	public void ignoresDistrictsWithoutGeometryOrNumber() {
+		Districts districts = new Districts(new JsonArray()
+				.add(new JsonObject().put("numero_gruppo", 1).put("nome", "centro"))
+				.add(new JsonObject().put("geometry", new JsonObject().put("type", "Polygon")
+						.put("coordinates", new JsonArray().add(rectangle(0, 0, 1, 1)))))
+				.add(new JsonObject().put("numero_gruppo", 3).put("geometry", new JsonObject().put("type", "Polygon")
+						.put("coordinates", new JsonArray().add(new JsonArray().add("invalid"))))));
+		assertEquals(0, districts.size());
+		assertNull(districts.locate(0.5, 0.5));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parseLimitsTheVertices() {
+		StringBuilder vertices = new StringBuilder();
+		for (int i = 0; i <= Polygon.MAX_PARSED_VERTICES; i++) {
+			vertices.append(i > 0 ? ";" : "").append(i % 2).append(',').append(i % 3);
+		}
+		Polygon.parse(vertices.toString());
+	}
+}
@@ -0,0 +1,36 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedResponsesTest {
+
+	@Test
+	public void keepsResponsesOfTheCurrentVersion() {
+		EncodedResponses responses = new EncodedResponses(60000);
+		EncodedResponses.Entry entry = responses.put("totals", 1, Buffer.buffer("{\"incidenti\":1}"));
+		assertEquals(entry, responses.get("totals", 1));
+		assertNull(responses.get("totals", 2));
+		assertNotEquals(entry.getEtag(), responses.put("totals", 2, Buffer.buffer("{\"incidenti\":1}")).getEtag());
+	}
+
+	@Test
+	public void matchesStrongAndWeakEtags() {
+		String etag = new EncodedResponses(0).put("totals", 1, Buffer.buffer("[]")).getEtag();
+		String weak = EncodedResponses.weak(etag);
+		assertTrue(weak.startsWith("W/\""));
+		assertTrue(EncodedResponses.matches(etag, etag));
+		assertTrue(EncodedResponses.matches(weak, etag));
+		assertTrue(EncodedResponses.matches(etag, weak));
+		assertTrue(EncodedResponses.matches("\"other\", " + weak, weak));
+		assertTrue(EncodedResponses.matches("*", weak));
+		assertFalse(EncodedResponses.matches("W/\"other\"", weak));
+		assertFalse(EncodedResponses.matches(null, weak));
+	}
+}
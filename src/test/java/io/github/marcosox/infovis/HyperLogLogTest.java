@@ -0,0 +1,68 @@
+package io.github.marcosox.infovis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+	private static final int PRECISION = 12;
+
+	/**
+	 * @return the estimate of a counter with the values 0 to distinct - 1, each one added twice
+	 */
+	private static long estimate(int distinct) {
+		HyperLogLog counter = new HyperLogLog(PRECISION);
+		for (int i = 0; i < distinct; i++) {
+			counter.add("VIA " + i);
+			counter.add("VIA " + i);
+		}
+		return counter.estimate();
+	}
+
+	private static void assertWithin(int distinct, double errors) {
+		double error = Math.abs(estimate(distinct) - distinct) / (double) distinct;
+		assertTrue("error " + error + " with " + distinct + " values",
+				error <= errors * HyperLogLog.relativeError(PRECISION));
+	}
+
+	@Test
+	public void emptyCounterEstimatesZero() {
+		assertEquals(0, new HyperLogLog(PRECISION).estimate());
+	}
+
+	@Test
+	public void smallCardinalitiesUseLinearCounting() {
+		// far below 2.5 * 2^precision registers linear counting has a much lower error than the raw estimate
+		assertEquals(1, estimate(1));
+		assertEquals(100, estimate(100), 4);
+		assertWithin(1000, 1);
+	}
+
+	@Test
+	public void estimateIsContinuousAroundTheSwitch() {
+		// 2.5 * 2^12 = 10240: the estimate switches from linear counting to the raw estimate
+		for (int distinct = 8000; distinct <= 13000; distinct += 500) {
+			assertWithin(distinct, 3);
+		}
+	}
+
+	@Test
+	public void largeCardinalitiesUseTheRawEstimate() {
+		assertWithin(100000, 3);
+		assertWithin(1000000, 3);
+	}
+
+	@Test
+	public void nullIsAValue() {
+		HyperLogLog counter = new HyperLogLog(PRECISION);
+		counter.add(null);
+		counter.add(null);
+		assertEquals(1, counter.estimate());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidPrecision() {
+		new HyperLogLog(17);
+	}
+}
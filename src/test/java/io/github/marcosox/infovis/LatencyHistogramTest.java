@@ -0,0 +1,54 @@
+package io.github.marcosox.infovis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertArrayEquals(new long[]{0, 0}, histogram.getQuantiles(0.5, 0.99));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 50; i++) {
+			histogram.record(i);
+		}
+		assertEquals(50, histogram.getCount());
+		assertEquals(50 * 51 / 2, histogram.getSum());
+		assertArrayEquals(new long[]{1, 25, 50}, histogram.getQuantiles(0, 0.5, 1));
+	}
+
+	@Test
+	public void quantilesAreWithinTheRelativeError() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		double[] quantiles = {0.5, 0.9, 0.99, 0.999, 1};
+		long[] values = histogram.getQuantiles(quantiles);
+		for (int q = 0; q < quantiles.length; q++) {
+			long exact = (long) (quantiles[q] * 100000);
+			assertTrue(values[q] + " < " + exact, values[q] >= exact);
+			assertTrue(values[q] + " > " + exact, values[q] <= exact * (1 + 1.0 / 32));
+		}
+	}
+
+	@Test
+	public void clampsOutOfRangeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(2, histogram.getCount());
+		long[] values = histogram.getQuantiles(0.5, 1);
+		assertEquals(0, values[0]);
+		assertTrue(values[1] >= 1L << 40);
+	}
+}
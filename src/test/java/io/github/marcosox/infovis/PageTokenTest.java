@@ -0,0 +1,55 @@
+package io.github.marcosox.infovis;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PageTokenTest {
+
+	@Test
+	public void decodesTheEncodedId() {
+		ObjectId objectId = new ObjectId();
+		assertEquals(objectId, PageToken.decode(PageToken.encode(objectId)));
+		assertEquals("2015/123|a b", PageToken.decode(PageToken.encode("2015/123|a b")));
+		assertEquals(42, PageToken.decode(PageToken.encode(42)));
+		assertEquals(42L, PageToken.decode(PageToken.encode(42L)));
+	}
+
+	@Test
+	public void tokensAreUrlSafe() {
+		String token = PageToken.encode("???>>>~~~");
+		assertFalse(token.contains("+"));
+		assertFalse(token.contains("/"));
+		assertFalse(token.contains("="));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnsupportedIds() {
+		PageToken.encode(1.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidBase64() {
+		PageToken.decode("not a token!");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyTokens() {
+		PageToken.decode("");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownTypes() {
+		PageToken.decode(Base64.getUrlEncoder().encodeToString("x42".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsMalformedIds() {
+		PageToken.decode(Base64.getUrlEncoder().encodeToString("ixyz".getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,104 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+	@Test
+	public void keysDoNotCollide() {
+		assertNotEquals(ResultCache.key("aggregateCount", "a|1", 2, "x"), ResultCache.key("aggregateCount", "a", 1, "2|x"));
+		assertNotEquals(ResultCache.key("count", "anno ", 10), ResultCache.key("count", "anno", 10));
+		assertNotEquals(ResultCache.key("count", "1:a"), ResultCache.key("count", "1", "a"));
+		assertEquals(ResultCache.key("count", null, 10), ResultCache.key("count", "", 10));
+	}
+
+	@Test
+	public void storesAndReadsValues() {
+		ResultCache cache = new ResultCache(60000, 10, 1000);
+		cache.put("a", "value", 5, cache.generation());
+		assertEquals("value", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(1L, (long) cache.stats().getLong("hits"));
+		assertEquals(1L, (long) cache.stats().getLong("misses"));
+	}
+
+	@Test
+	public void dropsResultsOfAnOlderGeneration() {
+		ResultCache cache = new ResultCache(60000, 10, 1000);
+		cache.put("a", "old", 3, cache.generation());
+		long started = cache.generation();    // a query starts
+		cache.invalidate();                   // the data changes while it runs
+		cache.put("b", "outdated", 8, started);
+		assertNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		cache.put("b", "fresh", 5, cache.generation());
+		assertEquals("fresh", cache.get("b"));
+		assertEquals(5L, (long) cache.stats().getLong("bytes"));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedEntries() {
+		ResultCache cache = new ResultCache(60000, 2, 1000);
+		cache.put("a", "a", 1, 0);
+		cache.put("b", "b", 1, 0);
+		cache.get("a");    // b is now the least recently used
+		cache.put("c", "c", 1, 0);
+		assertEquals("a", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("c", cache.get("c"));
+		assertEquals(1L, (long) cache.stats().getLong("evictions"));
+	}
+
+	@Test
+	public void evictsToStayWithinTheMaximumSize() {
+		ResultCache cache = new ResultCache(60000, 10, 10);
+		cache.put("a", "a", 4, 0);
+		cache.put("b", "b", 4, 0);
+		cache.put("c", "c", 4, 0);
+		assertNull(cache.get("a"));
+		assertEquals(8L, (long) cache.stats().getLong("bytes"));
+		cache.put("d", "d", 11, 0);    // larger than the whole cache, not stored
+		assertNull(cache.get("d"));
+		assertEquals("b", cache.get("b"));
+		cache.put("b", "b", 2, 0);     // replacing an entry releases its size
+		assertEquals(6L, (long) cache.stats().getLong("bytes"));
+	}
+
+	@Test
+	public void expiresEntries() throws InterruptedException {
+		ResultCache cache = new ResultCache(1, 10, 1000);
+		cache.put("a", "a", 1, 0);
+		Thread.sleep(5);
+		assertNull(cache.get("a"));
+		assertEquals(0L, (long) cache.stats().getLong("bytes"));
+	}
+
+	@Test
+	public void disabledCacheStoresNothing() {
+		ResultCache cache = new ResultCache(0, 10, 1000);
+		assertFalse(cache.isEnabled());
+		cache.put("a", "a", 1, 0);
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void estimatesTheEncodedSize() {
+		JsonArray result = new JsonArray();
+		for (int i = 0; i < 100; i++) {
+			result.add(new JsonObject().put("_id", "VIA " + i).put("count", 1000 + i).put("approximate", i % 2 == 0));
+		}
+		JsonObject totals = new JsonObject().put("total", 12345).put("items", result).put("next", (String) null);
+		long encoded = Json.encode(totals).length();
+		long estimate = ResultCache.estimateSize(totals);
+		assertTrue("estimate " + estimate + ", encoded " + encoded, estimate >= encoded * 0.8 && estimate <= encoded * 1.2);
+	}
+}
@@ -0,0 +1,102 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+	private Vertx vertx;
+
+	@Before
+	public void setUp() {
+		vertx = Vertx.vertx();
+	}
+
+	@After
+	public void tearDown() {
+		vertx.close();
+	}
+
+	@Test
+	public void joinsTheRunningComputation() throws Exception {
+		SingleFlight flights = new SingleFlight();
+		AtomicInteger started = new AtomicInteger();
+		AtomicReference<Promise<String>> running = new AtomicReference<>();
+		List<String> results = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(2);
+		CompletableFuture<boolean[]> joined = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger();
+		vertx.runOnContext(v -> {
+			boolean first = flights.execute(vertx, "count", promise -> {
+				started.incrementAndGet();
+				running.set(promise);
+			}, (AsyncResult<String> result) -> {
+				results.add(result.result());
+				done.countDown();
+			});
+			boolean second = flights.execute(vertx, "count", promise -> started.incrementAndGet(), (AsyncResult<String> result) -> {
+				results.add(result.result());
+				done.countDown();
+			});
+			pending.set(flights.size());
+			running.get().complete("42");
+			joined.complete(new boolean[]{first, second});
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(joined.get()[0]);
+		assertTrue(joined.get()[1]);
+		assertEquals(1, started.get());
+		assertEquals(1, pending.get());
+		assertEquals(2, results.size());
+		assertEquals("42", results.get(0));
+		assertEquals("42", results.get(1));
+		assertEquals(0, flights.size());
+	}
+
+	@Test
+	public void startsAgainOnceCompleted() throws Exception {
+		SingleFlight flights = new SingleFlight();
+		AtomicInteger started = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(2);
+		vertx.runOnContext(v -> flights.execute(vertx, "count", promise -> {
+			started.incrementAndGet();
+			promise.complete(1);
+		}, result -> {
+			done.countDown();
+			flights.execute(vertx, "count", promise -> {
+				started.incrementAndGet();
+				promise.complete(2);
+			}, again -> done.countDown());
+		}));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, started.get());
+	}
+
+	@Test
+	public void failsWhenTheComputationThrows() throws Exception {
+		SingleFlight flights = new SingleFlight();
+		CompletableFuture<AsyncResult<Object>> result = new CompletableFuture<>();
+		vertx.runOnContext(v -> flights.execute(vertx, "count", promise -> {
+			throw new IllegalStateException("broken");
+		}, result::complete));
+		AsyncResult<Object> failed = result.get(5, TimeUnit.SECONDS);
+		assertTrue(failed.failed());
+		assertEquals("broken", failed.cause().getMessage());
+		assertEquals(0, flights.size());
+	}
+}
@@ -0,0 +1,100 @@
+package io.github.marcosox.infovis;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingTest {
+
+	private static JsonObject counter(Object value, long count, long error) {
+		return new JsonObject().put("_id", value).put("count", count).put("error", error);
+	}
+
+	@Test
+	public void countsExactlyWithinCapacity() {
+		SpaceSaving counter = new SpaceSaving(3);
+		for (String value : new String[]{"a", "b", "a", "c", "a", "b"}) {
+			counter.add(value);
+		}
+		assertEquals(new JsonArray().add(counter("a", 3, 0)).add(counter("b", 2, 0)).add(counter("c", 1, 0)), counter.top(0));
+		assertEquals(6, counter.total());
+		assertTrue(counter.isGuaranteed(0));
+		assertTrue(counter.isGuaranteed(2));
+	}
+
+	@Test
+	public void evictsTheLeastCountedValue() {
+		SpaceSaving counter = new SpaceSaving(2);
+		for (String value : new String[]{"a", "a", "a", "a", "a", "b", "b", "c"}) {
+			counter.add(value);
+		}
+		// c replaces b, the least counted value, and inherits its count as error
+		assertEquals(new JsonArray().add(counter("a", 5, 0)).add(counter("c", 3, 2)), counter.top(0));
+		counter.add("d");
+		// d replaces c, now the least counted value
+		assertEquals(new JsonArray().add(counter("a", 5, 0)).add(counter("d", 4, 3)), counter.top(0));
+		assertEquals(new JsonArray().add(counter("a", 5, 0)), counter.top(1));
+		assertEquals(8 + 1, counter.total());
+	}
+
+	@Test
+	public void keepsTheBoundsOnSkewedStreams() {
+		int capacity = 50;
+		SpaceSaving counter = new SpaceSaving(capacity);
+		Map<Integer, Long> exact = new HashMap<>();
+		Random random = new Random(42);
+		int total = 100000;
+		for (int i = 0; i < total; i++) {
+			int value = (int) (2000 * Math.pow(random.nextDouble(), 4));    // long tail, as the streets
+			counter.add(value);
+			exact.merge(value, 1L, Long::sum);
+		}
+		JsonArray top = counter.top(0);
+		assertEquals(capacity, top.size());
+		long sum = 0;
+		long previous = Long.MAX_VALUE;
+		Set<Object> kept = new HashSet<>();
+		for (Object item : top) {
+			JsonObject entry = (JsonObject) item;
+			long count = entry.getLong("count");
+			long error = entry.getLong("error");
+			long trueCount = exact.get(entry.getInteger("_id"));
+			assertTrue("sorted by descending count", count <= previous);
+			assertTrue("count is an upper bound", trueCount <= count);
+			assertTrue("count - error is a lower bound", trueCount >= count - error);
+			assertTrue("error is at most total / capacity", error <= total / capacity);
+			previous = count;
+			sum += count;
+			kept.add(entry.getInteger("_id"));
+		}
+		assertEquals("the counts add up to the total", total, sum);
+		exact.forEach((value, count) -> {
+			if (count > total / capacity) {
+				assertTrue("frequent value " + value + " is kept", kept.contains(value));
+			}
+		});
+	}
+
+	@Test
+	public void guaranteesOnlyCertainTopValues() {
+		SpaceSaving counter = new SpaceSaving(10);
+		Random random = new Random(7);
+		for (int i = 0; i < 10000; i++) {
+			counter.add(random.nextInt(4) == 0 ? "frequent" : "rare " + random.nextInt(1000));
+		}
+		assertTrue(counter.isGuaranteed(1));
+		// the rare values are all below total / capacity, their counts are mostly errors
+		assertFalse(counter.isGuaranteed(5));
+		assertFalse(counter.isGuaranteed(0));
+	}
+}